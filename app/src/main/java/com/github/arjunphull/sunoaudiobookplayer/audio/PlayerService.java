@@ -12,13 +12,18 @@ import android.media.AudioFocusRequest;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 
+import androidx.core.content.ContextCompat;
+
 import com.github.arjunphull.sunoaudiobookplayer.R;
 import com.github.arjunphull.sunoaudiobookplayer.datamodel.AudiobookDataModel;
+import com.github.arjunphull.sunoaudiobookplayer.file.Database;
 import com.github.arjunphull.sunoaudiobookplayer.ui.PlayerActivity;
 import com.github.arjunphull.sunoaudiobookplayer.ui.RecyclerViewAdapter;
 
@@ -26,6 +31,7 @@ public class PlayerService extends Service implements AudioManager.OnAudioFocusC
     private static final String CHANNEL_NAME = "suno";
     private static final String CHANNEL_ID = "suno_1";
     private static final int NOTIFICATION_ID = 35;
+    private static final long CHECKPOINT_INTERVAL_MS = 5000;
 
     /**
      * Class used for the client Binder.  Because we know this service always
@@ -49,6 +55,14 @@ public class PlayerService extends Service implements AudioManager.OnAudioFocusC
     private boolean mPlaybackDelayed;
     private boolean mPlaybackAuthorized;
     private boolean mResumeOnFocusGain;
+    private Handler mCheckpointHandler;
+    private final Runnable mCheckpointTask = new Runnable() {
+        @Override
+        public void run() {
+            checkpoint();
+            mCheckpointHandler.postDelayed(this, CHECKPOINT_INTERVAL_MS);
+        }
+    };
 
     public PlayerService(){}
 
@@ -57,6 +71,9 @@ public class PlayerService extends Service implements AudioManager.OnAudioFocusC
         super.onCreate();
         preInit();
         initMediaPlayer();
+        // the handler runs on the main thread, so the media player is never touched concurrently
+        mCheckpointHandler = new Handler(Looper.getMainLooper());
+        mCheckpointHandler.postDelayed(mCheckpointTask, CHECKPOINT_INTERVAL_MS);
     }
 
 
@@ -89,7 +106,18 @@ public class PlayerService extends Service implements AudioManager.OnAudioFocusC
         return mBinder;
     }
 
+    // a sticky service can be stopped by the system without dispose() being called
+    @Override
+    public void onDestroy() {
+        mCheckpointHandler.removeCallbacks(mCheckpointTask);
+        checkpoint();
+        // queued behind the checkpoint's update on the main thread
+        Database.getInstanceAsync(this).thenAcceptAsync(Database::flushLocations, ContextCompat.getMainExecutor(this));
+        super.onDestroy();
+    }
+
     public void dispose() {
+        mCheckpointHandler.removeCallbacks(mCheckpointTask);
         mMediaPlayer.stop();
         mMediaPlayer.release();
         stopForeground(true);
@@ -133,13 +161,33 @@ public class PlayerService extends Service implements AudioManager.OnAudioFocusC
             }
 
             mMediaPlayer.seekTo(mMediaPlayer.getCurrentPosition() - rewind);
-            mMediaPlayer.start();
+            startPlayback();
             handlePlaybackChange();
         }
     }
 
     public void setPlaybackSpeed(float multiple) {
-        mMediaPlayer.setPlaybackParams(mMediaPlayer.getPlaybackParams().setSpeed(multiple));
+        mDataModel.setPlaybackSpeed(multiple);
+        // setting a non-zero speed starts a paused player, so a paused player picks the speed up when it is resumed
+        if (isPlaying() == 1) {
+            mMediaPlayer.setPlaybackParams(mMediaPlayer.getPlaybackParams().setSpeed(multiple));
+        }
+    }
+
+    private void startPlayback() {
+        mMediaPlayer.start();
+        if (mDataModel.getPlaybackSpeed() != mMediaPlayer.getPlaybackParams().getSpeed()) {
+            mMediaPlayer.setPlaybackParams(mMediaPlayer.getPlaybackParams().setSpeed(mDataModel.getPlaybackSpeed()));
+        }
+    }
+
+    // saving the position is a few stores into the mapped position table, so it is done regularly while playing
+    private void checkpoint() {
+        if (isPlaying() != 1) {
+            return;
+        }
+        mDataModel.setCurrentPosition(mMediaPlayer.getCurrentPosition());
+        Database.getInstanceAsync(this).thenAcceptAsync(database -> database.updateLocation(mDataModel), ContextCompat.getMainExecutor(this));
     }
 
     public int isPlaying() {
@@ -168,7 +216,7 @@ public class PlayerService extends Service implements AudioManager.OnAudioFocusC
         initMediaPlayer();
         // play next chapter unless the book finished
         if (mDataModel.getCurrentTrack() == newTrack) {
-            mMediaPlayer.start();
+            startPlayback();
             return true;
         } else {
             mDataModel.setCurrentPosition(mDataModel.getCurrentTrackLength());
@@ -186,7 +234,7 @@ public class PlayerService extends Service implements AudioManager.OnAudioFocusC
         initMediaPlayer();
         // play previous chapter unless the book finished
         if (mDataModel.getCurrentTrack() == newTrack || mDataModel.getCurrentTrack() == 0) {
-            mMediaPlayer.start();
+            startPlayback();
             return true;
         }
         return false;
@@ -275,7 +323,7 @@ public class PlayerService extends Service implements AudioManager.OnAudioFocusC
                 mMediaPlayer.release();
                 mDataModel.setCurrentPosition(0);
                 initMediaPlayer();
-                mMediaPlayer.start();
+                startPlayback();
             }
         });
     }
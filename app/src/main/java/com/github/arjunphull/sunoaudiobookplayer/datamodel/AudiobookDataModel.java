@@ -3,7 +3,6 @@ package com.github.arjunphull.sunoaudiobookplayer.datamodel;
 import android.net.Uri;
 
 import com.github.arjunphull.sunoaudiobookplayer.file.Audiobook;
-import com.github.arjunphull.sunoaudiobookplayer.file.Database;
 import com.github.arjunphull.sunoaudiobookplayer.file.TrackInfo;
 
 import java.io.File;
@@ -15,17 +14,26 @@ public class AudiobookDataModel {
     private final TrackInfo[] mTrackInfoArray;
     private int mCurrentTrackNum;
     private int mCurrentPositionMs;
+    private float mPlaybackSpeed;
     private File mCoverArtFile;
+    private File mThumbnailFile;
+    private File mPlayerCoverFile;
     private final ElapsedTime mElapsedTime;
+    private boolean mAvailable;
 
-    private AudiobookDataModel(String title, String author, TrackInfo[] trackInfoArray, int currentTrackNum, int currentPosition, String coverArtPath) {
+    private AudiobookDataModel(String title, String author, TrackInfo[] trackInfoArray, int currentTrackNum, int currentPosition, float playbackSpeed, File coverArtFile, File thumbnailFile, File playerCoverFile, boolean available) {
         mTitle = title;
         mAuthor = author;
         mTrackInfoArray = trackInfoArray;
         mCurrentTrackNum = currentTrackNum;
         mCurrentPositionMs = currentPosition;
-        mCoverArtFile = coverArtPath == null ? null : new File(coverArtPath);
+        mPlaybackSpeed = playbackSpeed;
+        mCoverArtFile = coverArtFile;
+        // fall back to the full size cover for books imported before the scaled copies existed
+        mThumbnailFile = thumbnailFile != null ? thumbnailFile : coverArtFile;
+        mPlayerCoverFile = playerCoverFile != null ? playerCoverFile : coverArtFile;
         mElapsedTime = new ElapsedTime();
+        mAvailable = available;
         int length = 0;
         for (TrackInfo t : trackInfoArray) {
             length += t.getLength();
@@ -34,27 +42,47 @@ public class AudiobookDataModel {
     }
 
     public static AudiobookDataModel createAudiobook(String author, String title, Audiobook fileData) {
-        String coverArtFilePath = null;
-        File coverArtFile = fileData.getCoverArtFile();
-        if (coverArtFile != null && coverArtFile.exists()) {
-            coverArtFilePath = coverArtFile.getAbsolutePath();
-        }
+        File coverArtFile = existingFile(fileData.getCoverArtFile());
+        File thumbnailFile = coverArtFile == null ? null : existingFile(fileData.getThumbnailFile());
+        File playerCoverFile = coverArtFile == null ? null : existingFile(fileData.getPlayerCoverFile());
+
+        Audiobook.Availability availability = fileData.getAvailability();
+        boolean available = availability != Audiobook.Availability.UNREADABLE && availability != Audiobook.Availability.MISSING;
+
+        return new AudiobookDataModel(title, author, fileData.tracksToArray(), fileData.getCurrentTrack(), fileData.getCurrentPosition(), fileData.getPlaybackSpeed(), coverArtFile, thumbnailFile, playerCoverFile, available);
+    }
+
+    private static File existingFile(File file) {
+        return file != null && file.exists() ? file.getAbsoluteFile() : null;
+    }
 
-        return new AudiobookDataModel(title, author, fileData.tracksToArray(), fileData.getCurrentTrack(), fileData.getCurrentPosition(), coverArtFilePath);
+    private static File moveToBookDir(File file, File dataDir, String author, String title) {
+        if (file == null) {
+            return null;
+        }
+        return new File(dataDir, author + System.getProperty("file.separator") + title + System.getProperty("file.separator") + file.getName());
     }
 
-    public void updateAuthorAndTitle(String author, String title) {
+    public void updateAuthorAndTitle(String author, String title, File dataDir) {
         mAuthor = author;
         mTitle = title;
-        if (mCoverArtFile != null) {
-            mCoverArtFile = new File(Database.getInstance(null).getDataDir(), author + System.getProperty("file.separator") + title + System.getProperty("file.separator") + mCoverArtFile.getName());
-        }
+        mCoverArtFile = moveToBookDir(mCoverArtFile, dataDir, author, title);
+        mThumbnailFile = moveToBookDir(mThumbnailFile, dataDir, author, title);
+        mPlayerCoverFile = moveToBookDir(mPlayerCoverFile, dataDir, author, title);
     }
 
     protected TrackInfo[] getTrackInfoArray() {
         return mTrackInfoArray;
     }
 
+    public boolean isAvailable() {
+        return mAvailable;
+    }
+
+    public void setAvailable(boolean available) {
+        mAvailable = available;
+    }
+
     public String getTitle() {
         return mTitle;
     }
@@ -149,6 +177,16 @@ public class AudiobookDataModel {
         return mCoverArtFile == null ? null : mCoverArtFile.getPath();
     }
 
+    // small enough to decode for every list row
+    public String getThumbnailPath() {
+        return mThumbnailFile == null ? null : mThumbnailFile.getPath();
+    }
+
+    // sized for the player screen
+    public String getPlayerCoverPath() {
+        return mPlayerCoverFile == null ? null : mPlayerCoverFile.getPath();
+    }
+
     public int getCurrentTrack() {
         return mCurrentTrackNum;
     }
@@ -175,6 +213,14 @@ public class AudiobookDataModel {
         mCurrentPositionMs = position;
     }
 
+    public float getPlaybackSpeed() {
+        return mPlaybackSpeed;
+    }
+
+    public void setPlaybackSpeed(float speed) {
+        mPlaybackSpeed = speed;
+    }
+
     public int getCurrentTrackLength() {
         return getTrackLengthMs(mCurrentTrackNum);
     }
@@ -0,0 +1,59 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/*
+ * Decides from a directory listing alone whether a file is worth opening and
+ * handing to the tag parser. A file passes if either its MIME type or its
+ * extension is on the allow-list; providers often report audiobook formats
+ * such as m4b as application/octet-stream, so the extension has to count too.
+ * MIME types may end in "/*" to allow a whole family.
+ */
+public class AudioFileFilter {
+    public static final AudioFileFilter DEFAULT = new AudioFileFilter(
+            new HashSet<>(Arrays.asList("audio/*", "application/ogg", "application/x-ogg")),
+            new HashSet<>(Arrays.asList("mp3", "m4a", "m4b", "mp4", "aac", "ogg", "oga", "opus", "flac", "wav", "wma", "aif", "aiff", "ape", "wv", "mka")));
+
+    private final Set<String> mMimeTypes;
+    private final Set<String> mExtensions;
+
+    // extensions are given without the dot
+    public AudioFileFilter(Set<String> mimeTypes, Set<String> extensions) {
+        mMimeTypes = new HashSet<>();
+        for (String mimeType : mimeTypes) {
+            mMimeTypes.add(mimeType.toLowerCase(Locale.US));
+        }
+        mExtensions = new HashSet<>();
+        for (String extension : extensions) {
+            mExtensions.add(extension.toLowerCase(Locale.US));
+        }
+    }
+
+    public Set<String> getMimeTypes() {
+        return Collections.unmodifiableSet(mMimeTypes);
+    }
+
+    public Set<String> getExtensions() {
+        return Collections.unmodifiableSet(mExtensions);
+    }
+
+    public boolean accept(String name, String mimeType) {
+        if (mimeType != null && !mimeType.isEmpty()) {
+            String type = mimeType.toLowerCase(Locale.US);
+            if (mMimeTypes.contains(type)) {
+                return true;
+            }
+            int slash = type.indexOf('/');
+            if (slash > 0 && mMimeTypes.contains(type.substring(0, slash) + "/*")) {
+                return true;
+            }
+        }
+
+        int dot = name == null ? -1 : name.lastIndexOf('.');
+        return dot >= 0 && mExtensions.contains(name.substring(dot + 1).toLowerCase(Locale.US));
+    }
+}
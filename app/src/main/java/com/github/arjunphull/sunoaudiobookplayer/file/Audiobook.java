@@ -3,36 +3,67 @@ package com.github.arjunphull.sunoaudiobookplayer.file;
 import java.io.File;
 import java.util.Comparator;
 import java.util.SortedSet;
-import java.util.StringJoiner;
 import java.util.TreeSet;
 
 public class Audiobook {
-    private String mAuthor;
-    private String mTitle;
-    private int mCurrentTrack;
-    private int mCurrentPosition;
-    private File mCoverArtFile;
+    public enum Availability {
+        UNKNOWN,
+        AVAILABLE,
+        UNREADABLE,
+        MISSING
+    }
+
+    // read by the ui and the index writer while playback and renames update them
+    private volatile int mId;
+    private volatile String mAuthor;
+    private volatile String mTitle;
+    private volatile int mCurrentTrack;
+    private volatile int mCurrentPosition;
+    private volatile float mPlaybackSpeed;
+    private volatile long mLastPlayed;
+    private volatile File mCoverArtFile;
+    private volatile File mThumbnailFile;
+    private volatile File mPlayerCoverFile;
     private SortedSet<TrackInfo> mTracks;
     private boolean mMultipleDisks;
     private boolean mValid;
+    private volatile Availability mAvailability;
+    private volatile boolean mDirty;
 
     public Audiobook(String author, String title) {
+        mId = -1;
         mAuthor = author;
         mTitle = title;
         mCurrentTrack = 0;
         mCurrentPosition = 0;
+        mPlaybackSpeed = 1.0f;
+        mLastPlayed = 0;
         mCoverArtFile = null;
+        mThumbnailFile = null;
+        mPlayerCoverFile = null;
         mTracks = new TreeSet<>(new SortByTrackNum());
         mMultipleDisks = false;
         mValid = true;
+        mAvailability = Availability.UNKNOWN;
+        // books start out dirty until they have been persisted
+        mDirty = true;
     }
 
-    public void updateAuthorAndTitle(String author, String title) {
+    // dataDir is the database's data directory, which the cover files move around in
+    public void updateAuthorAndTitle(String author, String title, File dataDir) {
         mAuthor = author;
         mTitle = title;
-        if (mCoverArtFile != null) {
-            mCoverArtFile = new File(Database.getInstance(null).getDataDir(), author + System.getProperty("file.separator") + title + System.getProperty("file.separator") + mCoverArtFile.getName());
+        mDirty = true;
+        mCoverArtFile = moveToBookDir(mCoverArtFile, dataDir);
+        mThumbnailFile = moveToBookDir(mThumbnailFile, dataDir);
+        mPlayerCoverFile = moveToBookDir(mPlayerCoverFile, dataDir);
+    }
+
+    private File moveToBookDir(File file, File dataDir) {
+        if (file == null) {
+            return null;
         }
+        return new File(dataDir, mAuthor + System.getProperty("file.separator") + mTitle + System.getProperty("file.separator") + file.getName());
     }
 
     public TrackInfo[] tracksToArray() {
@@ -41,6 +72,14 @@ public class Audiobook {
         return array;
     }
 
+    public int getId() {
+        return mId;
+    }
+
+    public void setId(int id) {
+        mId = id;
+    }
+
     public String getAuthor() {
         return mAuthor;
     }
@@ -69,6 +108,10 @@ public class Audiobook {
         }
     }
 
+    public int getNumTracks() {
+        return mTracks.size();
+    }
+
     public TrackInfo getFirstTrack() {
         return mTracks.first();
     }
@@ -102,6 +145,38 @@ public class Audiobook {
         mCurrentPosition = position;
     }
 
+    public float getPlaybackSpeed() {
+        return mPlaybackSpeed;
+    }
+
+    public void setPlaybackSpeed(float speed) {
+        mPlaybackSpeed = speed;
+    }
+
+    public long getLastPlayed() {
+        return mLastPlayed;
+    }
+
+    public void setLastPlayed(long lastPlayed) {
+        mLastPlayed = lastPlayed;
+    }
+
+    public boolean isDirty() {
+        return mDirty;
+    }
+
+    public void markClean() {
+        mDirty = false;
+    }
+
+    public Availability getAvailability() {
+        return mAvailability;
+    }
+
+    public void setAvailability(Availability availability) {
+        mAvailability = availability;
+    }
+
     public File getCoverArtFile() {
         return mCoverArtFile;
     }
@@ -110,12 +185,30 @@ public class Audiobook {
         mCoverArtFile = file;
     }
 
-    public String TracksToJsonArray() {
-        StringJoiner jsonSj = new StringJoiner(",", "tracks: [", "]");
+    // downsampled copies of the cover art for the library list and the player
+    public File getThumbnailFile() {
+        return mThumbnailFile;
+    }
+
+    public File getPlayerCoverFile() {
+        return mPlayerCoverFile;
+    }
+
+    public void setScaledCoverFiles(File thumbnailFile, File playerCoverFile) {
+        mThumbnailFile = thumbnailFile;
+        mPlayerCoverFile = playerCoverFile;
+    }
+
+    // a book with copies of this one's tracks, so it can be handed out while the scanner may still add to this one
+    Audiobook copy() {
+        Audiobook copy = new Audiobook(mAuthor, mTitle);
+        copy.mTracks = new TreeSet<>(mTracks.comparator());
         for (TrackInfo track : mTracks) {
-            jsonSj.add(track.toJson());
+            copy.mTracks.add(new TrackInfo(track));
         }
-        return jsonSj.toString();
+        copy.mMultipleDisks = mMultipleDisks;
+        copy.mValid = mValid;
+        return copy;
     }
 
     private static class SortByTrackNum implements Comparator<TrackInfo> {
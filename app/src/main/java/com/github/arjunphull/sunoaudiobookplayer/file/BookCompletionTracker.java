@@ -0,0 +1,88 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/*
+ * Works out when the scanner is done with a book, so it can be shown before
+ * the whole scan is over. Every directory counts the files it handed to the
+ * tag parser; once they have all been filed (or failed) the directory is
+ * exhausted, and a book is complete when every directory its tracks came
+ * from is exhausted.
+ *
+ * A book whose tracks are spread over directories that are walked far apart
+ * can complete more than once, each time with more tracks.
+ */
+class BookCompletionTracker {
+    private final Consumer<Audiobook> mOnComplete;
+    // files not yet filed, per directory. the listing itself counts as one until listed() is called
+    private final Map<Uri, Integer> mPendingFiles;
+    private final Map<Uri, Set<Audiobook>> mBooksByDir;
+    private final Map<Audiobook, Set<Uri>> mOpenDirsByBook;
+
+    BookCompletionTracker(Consumer<Audiobook> onComplete) {
+        mOnComplete = onComplete;
+        mPendingFiles = new HashMap<>();
+        mBooksByDir = new HashMap<>();
+        mOpenDirsByBook = new IdentityHashMap<>();
+    }
+
+    // called before the first file of a directory is handed out, so it can't be exhausted while it is still being listed
+    synchronized void listing(Uri dir) {
+        mPendingFiles.merge(dir, 1, Integer::sum);
+    }
+
+    synchronized void fileQueued(Uri dir) {
+        mPendingFiles.merge(dir, 1, Integer::sum);
+    }
+
+    void listed(Uri dir) {
+        fileDone(dir, null);
+    }
+
+    // audiobook is the book the file was filed under, or null if it couldn't be used
+    void fileDone(Uri dir, Audiobook audiobook) {
+        List<Audiobook> complete = new ArrayList<>();
+        synchronized (this) {
+            if (audiobook != null) {
+                mBooksByDir.computeIfAbsent(dir, k -> Collections.newSetFromMap(new IdentityHashMap<>())).add(audiobook);
+                mOpenDirsByBook.computeIfAbsent(audiobook, k -> new HashSet<>()).add(dir);
+            }
+            Integer pending = mPendingFiles.get(dir);
+            if (pending == null) {
+                return;
+            }
+            if (pending > 1) {
+                mPendingFiles.put(dir, pending - 1);
+                return;
+            }
+            mPendingFiles.remove(dir);
+
+            Set<Audiobook> books = mBooksByDir.remove(dir);
+            if (books == null) {
+                return;
+            }
+            for (Audiobook book : books) {
+                Set<Uri> openDirs = mOpenDirsByBook.get(book);
+                openDirs.remove(dir);
+                if (openDirs.isEmpty()) {
+                    mOpenDirsByBook.remove(book);
+                    complete.add(book);
+                }
+            }
+        }
+        // outside the lock, the listener may take its time
+        for (Audiobook book : complete) {
+            mOnComplete.accept(book);
+        }
+    }
+}
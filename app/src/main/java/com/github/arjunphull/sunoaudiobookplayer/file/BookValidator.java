@@ -0,0 +1,124 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+import android.content.Context;
+
+import com.github.arjunphull.sunoaudiobookplayer.util.UriUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// checks in the background that the tracks of each book can still be opened
+class BookValidator {
+    interface Callback {
+        void onValidated(Audiobook audiobook, Audiobook.Availability availability);
+    }
+
+    private final Context mContext;
+    private final Callback mCallback;
+    // runs on the validator thread each time it runs out of books, so the results can be saved in one go
+    private final Runnable mOnIdle;
+    private final PriorityBlockingQueue<Request> mQueue;
+    private final AtomicLong mSequence;
+    private Thread mThread;
+
+    BookValidator(Context context, Callback callback, Runnable onIdle) {
+        mContext = context;
+        mCallback = callback;
+        mOnIdle = onIdle;
+        mQueue = new PriorityBlockingQueue<>();
+        mSequence = new AtomicLong(0);
+        mThread = null;
+    }
+
+    static Audiobook.Availability checkAudiobook(Context context, Audiobook audiobook) {
+        for (TrackInfo trackInfo : audiobook.tracksToArray()) {
+            int checkUriExists = UriUtil.checkUriExists(context, trackInfo.getUri());
+            if (checkUriExists == -1) {
+                return Audiobook.Availability.MISSING;
+            } else if (checkUriExists == 0) {
+                return Audiobook.Availability.UNREADABLE;
+            }
+        }
+        return Audiobook.Availability.AVAILABLE;
+    }
+
+    synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(() -> {
+            try {
+                while (true) {
+                    Request request = mQueue.take();
+                    Audiobook audiobook = request.mAudiobook;
+                    // a book may be queued more than once if it was prioritized
+                    if (audiobook.getAvailability() == Audiobook.Availability.UNKNOWN) {
+                        mCallback.onValidated(audiobook, checkAudiobook(mContext, audiobook));
+                    }
+                    if (request.mResult != null) {
+                        request.mResult.complete(audiobook.getAvailability());
+                    }
+                    if (mQueue.isEmpty()) {
+                        mOnIdle.run();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            }
+        });
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.start();
+    }
+
+    // whoever is waiting on a dropped book gets told it is still unknown
+    void clear() {
+        List<Request> dropped = new ArrayList<>();
+        mQueue.drainTo(dropped);
+        for (Request request : dropped) {
+            if (request.mResult != null) {
+                request.mResult.complete(request.mAudiobook.getAvailability());
+            }
+        }
+    }
+
+    void enqueue(Audiobook audiobook) {
+        mQueue.add(new Request(audiobook, mSequence.incrementAndGet(), null));
+    }
+
+    // the most recently prioritized book is validated next
+    void prioritize(Audiobook audiobook) {
+        if (audiobook.getAvailability() == Audiobook.Availability.UNKNOWN) {
+            mQueue.add(new Request(audiobook, -mSequence.incrementAndGet(), null));
+        }
+    }
+
+    // like prioritize, but the returned future completes on the validator thread once the book has been checked
+    CompletableFuture<Audiobook.Availability> validate(Audiobook audiobook) {
+        if (audiobook.getAvailability() != Audiobook.Availability.UNKNOWN) {
+            return CompletableFuture.completedFuture(audiobook.getAvailability());
+        }
+        CompletableFuture<Audiobook.Availability> result = new CompletableFuture<>();
+        mQueue.add(new Request(audiobook, -mSequence.incrementAndGet(), result));
+        return result;
+    }
+
+    private static class Request implements Comparable<Request> {
+        private final Audiobook mAudiobook;
+        private final long mPriority;
+        private final CompletableFuture<Audiobook.Availability> mResult;
+
+        private Request(Audiobook audiobook, long priority, CompletableFuture<Audiobook.Availability> result) {
+            mAudiobook = audiobook;
+            mPriority = priority;
+            mResult = result;
+        }
+
+        @Override
+        public int compareTo(Request o) {
+            return Long.compare(mPriority, o.mPriority);
+        }
+    }
+}
@@ -0,0 +1,453 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Finds, decodes and saves cover art on a small pool of threads. Work is
+ * bounded three ways: by the number of threads, by how many files may be open
+ * at once (the scanner keeps plenty of descriptors open already) and by how
+ * many bytes of bitmaps, decoded or scaled, may be held at once.
+ *
+ * A cover that can't be had for whatever reason, even an out of memory error
+ * while decoding it, only means the book goes without one.
+ *
+ * Covers are written to a staging directory while a scan is still running,
+ * because at that point it isn't known whether the book will make it into the
+ * library. claim() moves them into the book directory once it does.
+ */
+class CoverArtExtractor {
+    private static final int MAX_THREADS = 4;
+    private static final int MAX_OPEN_FILES = 4;
+    // longest edge in pixels; the list row is 100x150dp and the player cover spans the screen width
+    private static final int THUMBNAIL_SIZE = 450;
+    private static final int PLAYER_COVER_SIZE = 1080;
+    // larger covers are scaled down to this before they are stored
+    private static final int MAX_COVER_SIZE = 2048;
+    private static final long MAX_IMAGE_FILE_SIZE = 32 * 1024 * 1024;
+    private static final int COVER_QUALITY = 90;
+    private static final int SCALED_COVER_QUALITY = 80;
+
+    // wall clock time spent in each stage, summed over all threads
+    static class Timings {
+        final AtomicLong mReadNs = new AtomicLong();
+        final AtomicLong mSearchNs = new AtomicLong();
+        final AtomicLong mDecodeNs = new AtomicLong();
+        final AtomicLong mEncodeNs = new AtomicLong();
+
+        void reset() {
+            mReadNs.set(0);
+            mSearchNs.set(0);
+            mDecodeNs.set(0);
+            mEncodeNs.set(0);
+        }
+    }
+
+    private static class Result {
+        final File mStagingDir;
+        // null if no cover was found
+        final String mCoverFileName;
+
+        Result(File stagingDir, String coverFileName) {
+            mStagingDir = stagingDir;
+            mCoverFileName = coverFileName;
+        }
+    }
+
+    private final Context mContext;
+    private final File mStagingDir;
+    private final String mCoverFileName;
+    private final String mPngCoverFileName;
+    private final String mThumbnailFileName;
+    private final String mPlayerCoverFileName;
+    private final Semaphore mOpenFiles;
+    private final Semaphore mDecodeBudget;
+    private final int mDecodeBudgetKb;
+    private final Map<Audiobook, CompletableFuture<Result>> mJobs;
+    // images the scanner already saw, by directory uri, so the directories don't have to be listed again
+    private final Map<String, List<DocumentEntry>> mKnownImages;
+    private final AtomicInteger mNextJobId;
+    private final Timings mTimings;
+    private ExecutorService mExecutor;
+
+    CoverArtExtractor(Context context, String coverFileName, String pngCoverFileName, String thumbnailFileName, String playerCoverFileName) {
+        mContext = context;
+        mStagingDir = new File(context.getCacheDir(), "covers");
+        mCoverFileName = coverFileName;
+        mPngCoverFileName = pngCoverFileName;
+        mThumbnailFileName = thumbnailFileName;
+        mPlayerCoverFileName = playerCoverFileName;
+        mOpenFiles = new Semaphore(MAX_OPEN_FILES);
+        // let decoded bitmaps take up to an eighth of the heap at once
+        mDecodeBudgetKb = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8 / 1024);
+        mDecodeBudget = new Semaphore(mDecodeBudgetKb);
+        mJobs = new ConcurrentHashMap<>();
+        mKnownImages = new ConcurrentHashMap<>();
+        mNextJobId = new AtomicInteger();
+        mTimings = new Timings();
+        mExecutor = null;
+
+        // covers staged by a scan that never finished
+        File[] stagingDirs = mStagingDir.listFiles();
+        if (stagingDirs != null) {
+            for (File stagingDir : stagingDirs) {
+                deleteDir(stagingDir);
+            }
+        }
+    }
+
+    Timings getTimings() {
+        return mTimings;
+    }
+
+    // starts looking for the cover of a book as soon as one of its tracks is known
+    synchronized void submit(Audiobook audiobook, TrackInfo trackInfo) {
+        if (mJobs.containsKey(audiobook)) {
+            return;
+        }
+        if (mExecutor == null) {
+            // first book of a new scan
+            mTimings.reset();
+            mExecutor = Executors.newFixedThreadPool(Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+        }
+        File stagingDir = new File(mStagingDir, String.valueOf(mNextJobId.getAndIncrement()));
+        mJobs.put(audiobook, CompletableFuture.supplyAsync(() -> extract(trackInfo, stagingDir), mExecutor)
+                .exceptionally(e -> new Result(stagingDir, null)));
+    }
+
+    // waits for the book's cover (extracting it now if it was never submitted) and moves it into bookDir.
+    // returns false if there is no cover or it couldn't be moved, e.g. because the title is too long for a file name
+    boolean claim(Audiobook audiobook, File bookDir) {
+        submit(audiobook, audiobook.getFirstTrack());
+        Result result = mJobs.remove(audiobook).join();
+        if (result.mCoverFileName == null) {
+            deleteDir(result.mStagingDir);
+            return false;
+        }
+
+        if (!bookDir.exists() && !bookDir.mkdirs()) {
+            deleteDir(result.mStagingDir);
+            return false;
+        }
+        File coverFile = new File(bookDir, result.mCoverFileName);
+        File thumbnailFile = new File(bookDir, mThumbnailFileName);
+        File playerCoverFile = new File(bookDir, mPlayerCoverFileName);
+        try {
+            // a cover found earlier may have been stored in the other format
+            new File(bookDir, result.mCoverFileName.equals(mCoverFileName) ? mPngCoverFileName : mCoverFileName).delete();
+            Files.move(new File(result.mStagingDir, result.mCoverFileName).toPath(), coverFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(new File(result.mStagingDir, mThumbnailFileName).toPath(), thumbnailFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(new File(result.mStagingDir, mPlayerCoverFileName).toPath(), playerCoverFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | SecurityException e) {
+            return false;
+        } finally {
+            deleteDir(result.mStagingDir);
+        }
+        audiobook.setCoverArtFile(coverFile);
+        audiobook.setScaledCoverFiles(thumbnailFile, playerCoverFile);
+        return true;
+    }
+
+    void rememberImages(Uri dir, List<DocumentEntry> images) {
+        mKnownImages.put(dir.toString(), images);
+    }
+
+    // drops the covers of books that didn't make it into the library
+    synchronized void discardUnclaimed() {
+        for (CompletableFuture<Result> job : mJobs.values()) {
+            deleteDir(job.join().mStagingDir);
+        }
+        mJobs.clear();
+        mKnownImages.clear();
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+            mExecutor = null;
+        }
+    }
+
+    // creates the scaled copies for a cover saved before they existed
+    boolean createScaledCovers(Audiobook audiobook) {
+        File coverFile = audiobook.getCoverArtFile();
+        if (coverFile == null || !coverFile.exists()) {
+            return false;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(coverFile.getPath(), options);
+        // only decode as much of the original as the player cover needs
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight, PLAYER_COVER_SIZE);
+        options.inJustDecodeBounds = false;
+        int costKb = reserveDecodeBudget(options, false);
+        try {
+            Bitmap cover = BitmapFactory.decodeFile(coverFile.getPath(), options);
+            if (cover == null) {
+                return false;
+            }
+            File bookDir = coverFile.getParentFile();
+            File thumbnailFile = new File(bookDir, mThumbnailFileName);
+            File playerCoverFile = new File(bookDir, mPlayerCoverFileName);
+            try {
+                saveScaledCovers(cover, thumbnailFile, playerCoverFile);
+            } finally {
+                cover.recycle();
+            }
+            audiobook.setScaledCoverFiles(thumbnailFile, playerCoverFile);
+            return true;
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            return false;
+        } finally {
+            mDecodeBudget.release(costKb);
+        }
+    }
+
+    // first see if the cover is embedded in the track
+    // if it isn't, scan the track's directory for pictures and choose the first one that decodes
+    private Result extract(TrackInfo trackInfo, File stagingDir) {
+        try {
+            byte[] bytes = readEmbeddedCover(trackInfo);
+            BitmapFactory.Options bounds = bytes == null ? null : boundsOf(bytes);
+            if (bounds == null) {
+                bytes = null;
+                for (DocumentEntry file : findImages(trackInfo)) {
+                    bytes = readImage(file);
+                    bounds = bytes == null ? null : boundsOf(bytes);
+                    if (bounds != null) {
+                        break;
+                    }
+                    bytes = null;
+                }
+            }
+            if (bytes == null) {
+                return new Result(stagingDir, null);
+            }
+
+            if (!stagingDir.exists() && !stagingDir.mkdirs()) {
+                return new Result(stagingDir, null);
+            }
+            return new Result(stagingDir, saveCovers(bytes, bounds, stagingDir));
+        } catch (IOException | InterruptedException | RuntimeException | OutOfMemoryError e) {
+            return new Result(stagingDir, null);
+        }
+    }
+
+    // jpeg and png covers of a sensible size are stored exactly as they were found; anything else is transcoded.
+    // either way only the downsampled bitmap needed for the scaled copies is ever decoded
+    private String saveCovers(byte[] bytes, BitmapFactory.Options bounds, File destDir) throws IOException {
+        boolean fits = bounds.outWidth <= MAX_COVER_SIZE && bounds.outHeight <= MAX_COVER_SIZE;
+        boolean jpeg = "image/jpeg".equals(bounds.outMimeType);
+        boolean png = "image/png".equals(bounds.outMimeType);
+        boolean passThrough = (jpeg || png) && fits;
+        String coverFileName = png && passThrough ? mPngCoverFileName : mCoverFileName;
+
+        long start = System.nanoTime();
+        if (passThrough) {
+            try (FileOutputStream fOut = new FileOutputStream(new File(destDir, coverFileName))) {
+                fOut.write(bytes);
+            }
+            bounds.inSampleSize = sampleSize(bounds.outWidth, bounds.outHeight, PLAYER_COVER_SIZE);
+        } else {
+            bounds.inSampleSize = sampleSize(bounds.outWidth, bounds.outHeight, MAX_COVER_SIZE);
+        }
+        mTimings.mEncodeNs.addAndGet(System.nanoTime() - start);
+
+        start = System.nanoTime();
+        int costKb = reserveDecodeBudget(bounds, !passThrough);
+        Bitmap cover = null;
+        try {
+            cover = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, bounds);
+            mTimings.mDecodeNs.addAndGet(System.nanoTime() - start);
+            if (cover == null) {
+                throw new IOException("unable to decode cover");
+            }
+
+            start = System.nanoTime();
+            if (!passThrough) {
+                Bitmap scaledCover = scaleCover(cover, MAX_COVER_SIZE);
+                saveCover(scaledCover, new File(destDir, coverFileName), COVER_QUALITY);
+                if (scaledCover != cover) {
+                    cover.recycle();
+                    cover = scaledCover;
+                }
+            }
+            saveScaledCovers(cover, new File(destDir, mThumbnailFileName), new File(destDir, mPlayerCoverFileName));
+            mTimings.mEncodeNs.addAndGet(System.nanoTime() - start);
+        } finally {
+            if (cover != null) {
+                cover.recycle();
+            }
+            mDecodeBudget.release(costKb);
+        }
+        return coverFileName;
+    }
+
+    private byte[] readEmbeddedCover(TrackInfo trackInfo) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        mOpenFiles.acquire();
+        try (ParcelFileDescriptor pfd = mContext.getContentResolver().openFileDescriptor(trackInfo.getUri(), "r")) {
+            return pfd == null ? null : TagParser.readCoverArt(pfd.getFd());
+        } finally {
+            mOpenFiles.release();
+            mTimings.mReadNs.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private byte[] readImage(DocumentEntry file) throws InterruptedException {
+        long length = file.mSize;
+        if (length <= 0 || length > MAX_IMAGE_FILE_SIZE) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+        mOpenFiles.acquire();
+        try (InputStream in = mContext.getContentResolver().openInputStream(file.mUri)) {
+            if (in == null) {
+                return null;
+            }
+            byte[] bytes = new byte[(int) length];
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) {
+                    return null;
+                }
+                read += n;
+            }
+            return bytes;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            mOpenFiles.release();
+            mTimings.mReadNs.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private List<DocumentEntry> findImages(TrackInfo trackInfo) {
+        long start = System.nanoTime();
+        Uri dir = trackInfo.getDir();
+        List<DocumentEntry> images = dir == null ? null : mKnownImages.get(dir.toString());
+        if (images == null) {
+            images = new ArrayList<>();
+            if (dir != null) {
+                for (DocumentEntry file : DocumentEntry.listChildren(mContext, dir)) {
+                    if (file.isImage()) {
+                        images.add(file);
+                    }
+                }
+            }
+        }
+        mTimings.mSearchNs.addAndGet(System.nanoTime() - start);
+        return images;
+    }
+
+    // reads only the image header; returns null if the bytes aren't an image BitmapFactory understands
+    private BitmapFactory.Options boundsOf(byte[] bytes) {
+        long start = System.nanoTime();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        options.inJustDecodeBounds = false;
+        mTimings.mDecodeNs.addAndGet(System.nanoTime() - start);
+        return options.outWidth > 0 && options.outHeight > 0 ? options : null;
+    }
+
+    // picks a sample size that makes the decoded bitmap and its scaled copies fit the budget, and blocks until
+    // that much is free. it is all reserved up front, since a thread holding part of the budget while it waits
+    // for more could wait forever
+    private int reserveDecodeBudget(BitmapFactory.Options options, boolean scaleToMaxCoverSize) {
+        options.inSampleSize = Math.max(1, options.inSampleSize);
+        while (costKb(options, scaleToMaxCoverSize) > mDecodeBudgetKb) {
+            options.inSampleSize *= 2;
+        }
+        int costKb = costKb(options, scaleToMaxCoverSize);
+        mDecodeBudget.acquireUninterruptibly(costKb);
+        return costKb;
+    }
+
+    // the decoded bitmap plus every copy scaleCover() will make of it on the way down to the thumbnail
+    private static int costKb(BitmapFactory.Options options, boolean scaleToMaxCoverSize) {
+        long width = Math.max(0, options.outWidth) / options.inSampleSize;
+        long height = Math.max(0, options.outHeight) / options.inSampleSize;
+        long bytes = width * height * 4;
+        int[] maxSizes = scaleToMaxCoverSize ? new int[] {MAX_COVER_SIZE, PLAYER_COVER_SIZE, THUMBNAIL_SIZE} : new int[] {PLAYER_COVER_SIZE, THUMBNAIL_SIZE};
+        for (int maxSize : maxSizes) {
+            if (width > maxSize || height > maxSize) {
+                float scale = maxSize / (float) Math.max(width, height);
+                width = Math.max(1, Math.round(width * scale));
+                height = Math.max(1, Math.round(height * scale));
+                bytes += width * height * 4;
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, bytes / 1024 + 1);
+    }
+
+    private static int sampleSize(int width, int height, int maxSize) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= maxSize || height / (sampleSize * 2) >= maxSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private void saveCover(Bitmap cover, File destFile, int quality) throws IOException {
+        try (FileOutputStream fOut = new FileOutputStream(destFile)) {
+            cover.compress(Bitmap.CompressFormat.JPEG, quality, fOut);
+            fOut.flush();
+        }
+    }
+
+    private void saveScaledCovers(Bitmap cover, File thumbnailFile, File playerCoverFile) throws IOException {
+        Bitmap playerCover = scaleCover(cover, PLAYER_COVER_SIZE);
+        saveCover(playerCover, playerCoverFile, SCALED_COVER_QUALITY);
+        // scale the thumbnail from the already smaller player cover
+        Bitmap thumbnail = scaleCover(playerCover, THUMBNAIL_SIZE);
+        saveCover(thumbnail, thumbnailFile, SCALED_COVER_QUALITY);
+        if (thumbnail != playerCover) {
+            thumbnail.recycle();
+        }
+        if (playerCover != cover) {
+            playerCover.recycle();
+        }
+    }
+
+    // returns the bitmap itself if it already fits
+    private Bitmap scaleCover(Bitmap cover, int maxSize) {
+        int width = cover.getWidth();
+        int height = cover.getHeight();
+        if (width <= maxSize && height <= maxSize) {
+            return cover;
+        }
+        float scale = maxSize / (float) Math.max(width, height);
+        return Bitmap.createScaledBitmap(cover, Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)), true);
+    }
+
+    private void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+}
@@ -1,101 +1,376 @@
 package com.github.arjunphull.sunoaudiobookplayer.file;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.net.Uri;
-import android.os.ParcelFileDescriptor;
-import android.provider.MediaStore;
-
-import androidx.documentfile.provider.DocumentFile;
+import android.util.JsonReader;
 
 import com.github.arjunphull.sunoaudiobookplayer.datamodel.AudiobookDataModel;
-import com.github.arjunphull.sunoaudiobookplayer.util.UriUtil;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.TreeMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+/*
+ * The library is kept in sorted concurrent maps so that readers (the UI, the
+ * validator, playback position updates) never block. Everything that changes
+ * the structure of the library or writes the index is synchronized on the
+ * database, so writers run one at a time.
+ */
 public class Database {
     //constants
     private final String DATA_DIR_NAME = "data";
     private final String TRACKS_FILE_NAME = "trackinfo.json";
     private final String COVER_FILE_NAME = "cover.jpg";
+    private final String PNG_COVER_FILE_NAME = "cover.png";
+    private final String THUMBNAIL_FILE_NAME = "cover_thumb.jpg";
+    private final String PLAYER_COVER_FILE_NAME = "cover_player.jpg";
     private final String POSITION_FILE_NAME = "position";
-    private final int LOAD_THREAD_POOL_SIZE = 6;
+    private final String INDEX_FILE_NAME = "library.idx";
+    private final String POSITIONS_FILE_NAME = "positions.dat";
+    private final String FINGERPRINTS_FILE_NAME = "scan.dat";
+    private final String TAG_CACHE_FILE_NAME = "tags.dat";
+    private final String TAG_SOURCES_FILE_NAME = "tagsources";
 
-    private static Database sInstance = null;
+    private static CompletableFuture<Database> sInstanceFuture = null;
+    // loads the library and does its follow up work, so none of it queues behind other users of the common pool
+    private static final ThreadPoolExecutor sLoader = createLoader();
 
     private final File mDataDir;
-
-    private Map<String, Map<String, Audiobook>> mHierarchicalData;
+    private final LibraryIndex mIndex;
+    private final PositionStore mPositions;
+    private final ScanFingerprints mFingerprints;
+    // outlives deleteDatabase() on purpose, so rebuilding the library doesn't parse every file again
+    private final TagCache mTagCache;
+    private final TagSourceRouter mTagSourceRouter;
+    private final BookValidator mValidator;
+    private final CoverArtExtractor mCoverExtractor;
+    private OnAvailabilityChangeListener mAvailabilityListener;
+    // books have been deleted or found missing by the validator, but the index hasn't been saved since
+    private boolean mRemovalsUnsaved;
+
+    private final ConcurrentNavigableMap<String, ConcurrentNavigableMap<String, Audiobook>> mHierarchicalData;
+    // books put in the library by publishAudiobook during the scan in progress, not saved yet
+    private final Set<Audiobook> mPublished;
+    // the id the next new book gets; ids are never handed out twice while the library is loaded
+    private int mNextId;
 
     private Database(Context context) {
         mDataDir = new File(context.getFilesDir(), DATA_DIR_NAME);
-        mHierarchicalData = new TreeMap<>();
-
-        Set<File> deleteSet = new HashSet<>();
-        ExecutorService executor = Executors.newFixedThreadPool(LOAD_THREAD_POOL_SIZE);
-        List<Future<?>> executorJobs = new LinkedList<>();
-        loadHierarchicalData(context, mDataDir.listFiles(), deleteSet, executor, executorJobs);
-
-        // wait for all jobs to finish
-        while (true) {
-            synchronized (executorJobs) {
-                List<Future<?>> finishedList = new ArrayList<>(executorJobs.size());
-                for (Future<?> job : executorJobs) {
-                    if (job.isDone()) {
-                        finishedList.add(job);
-                    }
-                }
-                for (Future<?> job : finishedList) {
-                    executorJobs.remove(job);
-                }
-                if (executorJobs.isEmpty()) {
-                    break;
+        mIndex = new LibraryIndex(new File(context.getFilesDir(), INDEX_FILE_NAME));
+        mPositions = new PositionStore(new File(context.getFilesDir(), POSITIONS_FILE_NAME));
+        mFingerprints = new ScanFingerprints(new File(context.getFilesDir(), FINGERPRINTS_FILE_NAME));
+        mTagCache = new TagCache(new File(context.getFilesDir(), TAG_CACHE_FILE_NAME));
+        mTagSourceRouter = new TagSourceRouter(new File(context.getFilesDir(), TAG_SOURCES_FILE_NAME));
+        mHierarchicalData = new ConcurrentSkipListMap<>();
+        mPublished = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        mNextId = 0;
+        mCoverExtractor = new CoverArtExtractor(context.getApplicationContext(), COVER_FILE_NAME, PNG_COVER_FILE_NAME, THUMBNAIL_FILE_NAME, PLAYER_COVER_FILE_NAME);
+
+        Map<String, Map<String, Audiobook>> indexedData = mIndex.exists() ? mIndex.load(mDataDir, COVER_FILE_NAME, PNG_COVER_FILE_NAME, THUMBNAIL_FILE_NAME, PLAYER_COVER_FILE_NAME) : null;
+        if (indexedData != null) {
+            putAll(indexedData);
+            mNextId = findNextId();
+            if (mPositions.isNew()) {
+                migratePositions();
+            } else {
+                loadPositions();
+            }
+        } else {
+            migrateLegacyData();
+        }
+
+        // the library is shown straight from the index; track reachability is checked afterwards
+        mRemovalsUnsaved = false;
+        mValidator = new BookValidator(context.getApplicationContext(), this::onValidated, this::saveRemovals);
+        for (Map.Entry<String, ConcurrentNavigableMap<String, Audiobook>> authorEnt : mHierarchicalData.entrySet()) {
+            for (Map.Entry<String, Audiobook> bookEnt : authorEnt.getValue().entrySet()) {
+                mValidator.enqueue(bookEnt.getValue());
+            }
+        }
+        mValidator.start();
+
+        // covers imported before the scaled copies existed get them in the background
+        CompletableFuture.runAsync(this::createMissingScaledCovers, sLoader);
+    }
+
+    // one time conversion of the old per book trackinfo.json/position files into the library index
+    private synchronized void migrateLegacyData() {
+        // one fork/join task per author directory; each returns its own book map so no locking is needed
+        Set<File> deleteSet = ConcurrentHashMap.newKeySet();
+        File[] authorDirs = mDataDir.listFiles();
+        if (authorDirs != null) {
+            List<AuthorLoadTask> tasks = new ArrayList<>(authorDirs.length);
+            for (File authorDir : authorDirs) {
+                if (authorDir.isDirectory()) {
+                    tasks.add(new AuthorLoadTask(authorDir, deleteSet));
                 }
             }
+            // a pool of its own, since this runs once and shouldn't tie up the common pool
+            ForkJoinPool pool = new ForkJoinPool();
             try {
-                TimeUnit.MILLISECONDS.sleep(100);
-            } catch (InterruptedException e) {
-                break;
+                for (AuthorLoadTask task : tasks) {
+                    pool.execute(task);
+                }
+                for (AuthorLoadTask task : tasks) {
+                    for (Map.Entry<String, Audiobook> bookEnt : task.join().entrySet()) {
+                        putAudiobook(task.mAuthorDir.getName(), bookEnt.getKey(), bookEnt.getValue());
+                    }
+                }
+            } finally {
+                pool.shutdown();
             }
         }
-        executor.shutdown();
 
+        // a book directory without track info (e.g. a leftover cover) is not a book
+        for (Map.Entry<String, ConcurrentNavigableMap<String, Audiobook>> authorEnt : mHierarchicalData.entrySet()) {
+            for (Map.Entry<String, Audiobook> bookEnt : authorEnt.getValue().entrySet()) {
+                if (!bookEnt.getValue().isValid()) {
+                    deleteSet.add(new File(new File(mDataDir, authorEnt.getKey()), bookEnt.getKey()));
+                }
+            }
+        }
         for (File titleDir : deleteSet) {
             File authorDir = titleDir.getParentFile();
-            deleteAudiobook(authorDir.getName(), titleDir.getName());
+            removeAudiobook(authorDir.getName(), titleDir.getName());
         }
+
+        storePositions();
+        try {
+            saveIndex();
+        } catch (IOException | SecurityException e) {
+            // keep the legacy files around so that the migration is retried on the next start
+            return;
+        }
+
+        if (authorDirs == null) {
+            return;
+        }
+        for (File authorDir : authorDirs) {
+            File[] titleDirs = authorDir.listFiles();
+            if (titleDirs == null) {
+                continue;
+            }
+            for (File titleDir : titleDirs) {
+                new File(titleDir, TRACKS_FILE_NAME).delete();
+                new File(titleDir, POSITION_FILE_NAME).delete();
+            }
+        }
+    }
+
+    // reads every book's resume state straight out of the position table
+    private void loadPositions() {
+        for (Map.Entry<String, ConcurrentNavigableMap<String, Audiobook>> authorEnt : mHierarchicalData.entrySet()) {
+            for (Map.Entry<String, Audiobook> bookEnt : authorEnt.getValue().entrySet()) {
+                mPositions.read(bookEnt.getValue());
+            }
+        }
+    }
+
+    // older versions kept positions in the index, which loaded them into the books
+    private synchronized void migratePositions() {
+        storePositions();
+        try {
+            // drops the positions from the index
+            saveIndex();
+        } catch (IOException | SecurityException e) {
+            // the old index still loads; its positions are simply ignored from now on
+        }
+    }
+
+    private synchronized void storePositions() {
+        assignBookIds();
+        for (Map.Entry<String, ConcurrentNavigableMap<String, Audiobook>> authorEnt : mHierarchicalData.entrySet()) {
+            for (Map.Entry<String, Audiobook> bookEnt : authorEnt.getValue().entrySet()) {
+                Audiobook audiobook = bookEnt.getValue();
+                mPositions.write(audiobook.getId(), audiobook.getCurrentTrack(), audiobook.getCurrentPosition(), audiobook.getPlaybackSpeed(), audiobook.getLastPlayed());
+            }
+        }
+        mPositions.force();
     }
 
-    public static synchronized Database getInstance(Context context) {
-        if (sInstance == null) {
-            sInstance = new Database(context);
+    private synchronized void saveIndex() throws IOException {
+        assignBookIds();
+        mIndex.save(mHierarchicalData);
+        mRemovalsUnsaved = false;
+        for (Map.Entry<String, ConcurrentNavigableMap<String, Audiobook>> authorEnt : mHierarchicalData.entrySet()) {
+            for (Map.Entry<String, Audiobook> bookEnt : authorEnt.getValue().entrySet()) {
+                bookEnt.getValue().markClean();
+            }
         }
+    }
 
-        return sInstance;
+    private void putAll(Map<String, Map<String, Audiobook>> hierarchicalData) {
+        for (Map.Entry<String, Map<String, Audiobook>> authorEnt : hierarchicalData.entrySet()) {
+            for (Map.Entry<String, Audiobook> bookEnt : authorEnt.getValue().entrySet()) {
+                putAudiobook(authorEnt.getKey(), bookEnt.getKey(), bookEnt.getValue());
+            }
+        }
+    }
+
+    // returns false if there already is a book with this author and title
+    private boolean putAudiobook(String author, String title, Audiobook audiobook) {
+        ConcurrentNavigableMap<String, Audiobook> bookMap = mHierarchicalData.computeIfAbsent(author, k -> new ConcurrentSkipListMap<>());
+        return bookMap.putIfAbsent(title, audiobook) == null;
+    }
+
+    // a book published earlier in this scan hasn't been saved yet, so a more complete version of it takes its place
+    private boolean replacePublished(String author, String title, Audiobook audiobook) {
+        ConcurrentNavigableMap<String, Audiobook> bookMap = mHierarchicalData.get(author);
+        Audiobook published = bookMap == null ? null : bookMap.get(title);
+        if (published == null || published == audiobook || !mPublished.remove(published)) {
+            return false;
+        }
+        audiobook.setId(published.getId());
+        audiobook.setCurrentTrack(published.getCurrentTrack());
+        audiobook.setCurrentPosition(published.getCurrentPosition());
+        audiobook.setPlaybackSpeed(published.getPlaybackSpeed());
+        audiobook.setLastPlayed(published.getLastPlayed());
+        bookMap.put(title, audiobook);
+        return true;
+    }
+
+    private int findNextId() {
+        int nextId = 0;
+        for (Map.Entry<String, ConcurrentNavigableMap<String, Audiobook>> authorEnt : mHierarchicalData.entrySet()) {
+            for (Map.Entry<String, Audiobook> bookEnt : authorEnt.getValue().entrySet()) {
+                nextId = Math.max(nextId, bookEnt.getValue().getId() + 1);
+            }
+        }
+        return nextId;
+    }
+
+    private synchronized boolean assignBookId(Audiobook audiobook) {
+        if (audiobook.getId() >= 0) {
+            return false;
+        }
+        audiobook.setId(mNextId++);
+        // the slot may have belonged to a book from an older library, so don't let the book inherit it
+        mPositions.write(audiobook.getId(), audiobook.getCurrentTrack(), audiobook.getCurrentPosition(), audiobook.getPlaybackSpeed(), audiobook.getLastPlayed());
+        return true;
+    }
+
+    private synchronized boolean assignBookIds() {
+        boolean assigned = false;
+        for (Map.Entry<String, ConcurrentNavigableMap<String, Audiobook>> authorEnt : mHierarchicalData.entrySet()) {
+            for (Map.Entry<String, Audiobook> bookEnt : authorEnt.getValue().entrySet()) {
+                assigned |= assignBookId(bookEnt.getValue());
+            }
+        }
+        return assigned;
+    }
+
+    private static ThreadPoolExecutor createLoader() {
+        ThreadPoolExecutor loader = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        loader.allowCoreThreadTimeOut(true);
+        return loader;
+    }
+
+    // the returned future completes on a background thread once the library has been loaded.
+    // if loading fails, the next call tries again instead of handing out the same failure forever
+    public static synchronized CompletableFuture<Database> getInstanceAsync(Context context) {
+        if (sInstanceFuture == null) {
+            Context appContext = context.getApplicationContext();
+            CompletableFuture<Database> instanceFuture = CompletableFuture.supplyAsync(() -> new Database(appContext), sLoader);
+            sInstanceFuture = instanceFuture;
+            instanceFuture.whenComplete((database, e) -> {
+                if (e != null) {
+                    forgetInstance(instanceFuture);
+                }
+            });
+            return instanceFuture;
+        }
+
+        return sInstanceFuture;
+    }
+
+    private static synchronized void forgetInstance(CompletableFuture<Database> instanceFuture) {
+        if (sInstanceFuture == instanceFuture) {
+            sInstanceFuture = null;
+        }
+    }
+
+    // blocks until the library has been loaded; prefer getInstanceAsync on the UI thread
+    public static Database getInstance(Context context) {
+        return getInstanceAsync(context).join();
+    }
+
+    public void setOnAvailabilityChangeListener(OnAvailabilityChangeListener listener) {
+        mAvailabilityListener = listener;
+    }
+
+    private Audiobook findAudiobook(String author, String title) {
+        ConcurrentNavigableMap<String, Audiobook> bookMap = mHierarchicalData.get(author);
+        return bookMap == null ? null : bookMap.get(title);
+    }
+
+    public void prioritizeValidation(String author, String title) {
+        Audiobook audiobook = findAudiobook(author, title);
+        if (audiobook != null) {
+            mValidator.prioritize(audiobook);
+        }
+    }
+
+    // checks a book next (e.g. before playing it) if the background validator hasn't gotten to it yet.
+    // completes on the validator thread with whether the book can be played
+    public CompletableFuture<Boolean> validateAudiobook(String author, String title) {
+        Audiobook audiobook = findAudiobook(author, title);
+        if (audiobook == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return mValidator.validate(audiobook).thenApply(availability -> availability == Audiobook.Availability.AVAILABLE);
+    }
+
+    private synchronized void onValidated(Audiobook audiobook, Audiobook.Availability availability) {
+        if (audiobook.getAvailability() != Audiobook.Availability.UNKNOWN) {
+            return;
+        }
+        audiobook.setAvailability(availability);
+        // books whose files are gone are dropped; books we merely can't read right now are only flagged
+        if (availability == Audiobook.Availability.MISSING && findAudiobook(audiobook.getAuthor(), audiobook.getTitle()) == audiobook) {
+            removeAudiobook(audiobook.getAuthor(), audiobook.getTitle());
+            mRemovalsUnsaved = true;
+        }
+
+        OnAvailabilityChangeListener listener = mAvailabilityListener;
+        if (listener != null && availability != Audiobook.Availability.AVAILABLE) {
+            listener.onAvailabilityChange(audiobook);
+        }
+    }
+
+    // called by the validator whenever its queue runs dry, so a run of missing books costs one index write,
+    // and after each delete
+    private synchronized void saveRemovals() {
+        if (!mRemovalsUnsaved) {
+            return;
+        }
+        try {
+            saveIndex();
+        } catch (IOException | SecurityException e) {
+            // tried again after the next removal
+        }
     }
 
     private boolean deleteFiles(File[] files) {
@@ -110,15 +385,51 @@ public class Database {
         return success;
     }
 
+    // safe to call on the ui thread: the book leaves the library at once, without waiting for a scan to
+    // let go of the lock, and its files and the index are taken care of in the background.
+    // returns false if there was no such book
     public boolean deleteAudiobook(String author, String title) {
+        ConcurrentNavigableMap<String, Audiobook> bookMap = mHierarchicalData.get(author);
+        Audiobook audiobook = bookMap == null ? null : bookMap.get(title);
+        if (audiobook == null || !bookMap.remove(title, audiobook)) {
+            return false;
+        }
+
+        CompletableFuture.runAsync(() -> {
+            synchronized (this) {
+                discardAudiobook(author, title, audiobook);
+                mRemovalsUnsaved = true;
+                saveRemovals();
+            }
+        }, sLoader);
+        return true;
+    }
+
+    private synchronized boolean removeAudiobook(String author, String title) {
+        ConcurrentNavigableMap<String, Audiobook> bookMap = mHierarchicalData.get(author);
+        return discardAudiobook(author, title, bookMap == null ? null : bookMap.remove(title));
+    }
+
+    // everything that goes with removing a book, once it has been taken out of its book map
+    private synchronized boolean discardAudiobook(String author, String title, Audiobook audiobook) {
         boolean success = true;
 
-        Map<String, Audiobook> bookMap = mHierarchicalData.get(author);
-        if (bookMap != null) {
-            bookMap.remove(title);
-            if (bookMap.isEmpty()) {
-                mHierarchicalData.remove(author);
+        if (audiobook != null) {
+            mPositions.clear(audiobook.getId());
+            // rescanning the same directory should bring the book back
+            List<Uri> trackUris = new ArrayList<>();
+            for (TrackInfo trackInfo : audiobook.tracksToArray()) {
+                trackUris.add(trackInfo.getUri());
             }
+            mFingerprints.forget(trackUris);
+        }
+        ConcurrentNavigableMap<String, Audiobook> bookMap = mHierarchicalData.get(author);
+        if (bookMap != null && bookMap.isEmpty()) {
+            mHierarchicalData.remove(author, bookMap);
+        }
+        // a scan or a rename may have put another book under this name since, and its covers are in that directory now
+        if (findAudiobook(author, title) != null) {
+            return success;
         }
 
         File bookDir;
@@ -139,13 +450,21 @@ public class Database {
         return success;
     }
 
-    public boolean deleteDatabase() {
+    public synchronized boolean deleteDatabase() {
         boolean result = false;
         try {
-            if (deleteFiles(Objects.requireNonNull(mDataDir.listFiles()))) {
+            if (mDataDir.exists() && deleteFiles(Objects.requireNonNull(mDataDir.listFiles()))) {
                 result = mDataDir.delete();
-                mHierarchicalData = new TreeMap<>();
+            } else {
+                result = !mDataDir.exists();
             }
+            result &= mIndex.delete();
+            mPositions.delete();
+            mFingerprints.delete();
+            mValidator.clear();
+            mHierarchicalData.clear();
+            mNextId = 0;
+            mPublished.clear();
         } catch (SecurityException e) {
             result = false;
         }
@@ -153,289 +472,332 @@ public class Database {
         return result;
     }
 
-    public boolean updateAuthorAndTitle(String oldAuthor, String oldTitle, String newAuthor, String newTitle) {
+    public synchronized boolean updateAuthorAndTitle(String oldAuthor, String oldTitle, String newAuthor, String newTitle) {
         boolean success = true;
-        Audiobook audiobook = null;
-        Map<String, Audiobook> bookMap = mHierarchicalData.get(oldAuthor);
-        if (bookMap != null) {
-            audiobook = bookMap.get(oldTitle);
-            bookMap.remove(oldTitle);
-            if (bookMap.isEmpty()) {
-                mHierarchicalData.remove(oldAuthor);
-            }
-        }
-
+        Audiobook audiobook = findAudiobook(oldAuthor, oldTitle);
         if (audiobook == null) {
             return false;
         }
 
         File oldBookDir, oldAuthorDir, newBookDir;
         try {
+            // the book directory only holds the cover art, so it may not exist
             oldBookDir = new File(mDataDir, oldAuthor + System.getProperty("file.separator") + oldTitle);
             newBookDir = new File(mDataDir, newAuthor + System.getProperty("file.separator") + newTitle);
-            if (oldBookDir.exists() && !newBookDir.exists()) {
+            Map<String, Audiobook> newBookMap = mHierarchicalData.get(newAuthor);
+            if (newBookDir.exists() || (newBookMap != null && newBookMap.containsKey(newTitle))) {
+                success = false;
+            } else if (oldBookDir.exists()) {
                 oldAuthorDir = oldBookDir.getParentFile();
                 newBookDir.mkdirs();
                 Files.move(oldBookDir.toPath(), newBookDir.toPath(), StandardCopyOption.REPLACE_EXISTING);
                 if (oldAuthorDir.listFiles().length == 0) {
                     success &= oldAuthorDir.delete();
                 }
-            } else {
-                success = false;
             }
         } catch (SecurityException | IOException e) {
+            success = false;
+        }
+
+        if (!success) {
             return false;
         }
 
-        if (success) {
-            audiobook.updateAuthorAndTitle(newAuthor, newTitle);
-            bookMap = mHierarchicalData.get(newAuthor);
-            if (bookMap == null) {
-                bookMap = new TreeMap<>();
-                mHierarchicalData.put(newAuthor, bookMap);
-            }
-            bookMap.put(newTitle, audiobook);
+        // readers briefly see the book under both names rather than under neither
+        putAudiobook(newAuthor, newTitle, audiobook);
+        ConcurrentNavigableMap<String, Audiobook> bookMap = mHierarchicalData.get(oldAuthor);
+        bookMap.remove(oldTitle);
+        if (bookMap.isEmpty()) {
+            mHierarchicalData.remove(oldAuthor, bookMap);
         }
+        audiobook.updateAuthorAndTitle(newAuthor, newTitle, mDataDir);
 
-        return success;
+        try {
+            saveIndex();
+        } catch (IOException | SecurityException e) {
+            return false;
+        }
+
+        return true;
     }
 
-    private void loadHierarchicalData(Context context, File[] files, Set<File> deleteSet, ExecutorService executor, List<Future<?>> executorJobs) {
-        if (files == null) {
-            return;
+    private class AuthorLoadTask extends RecursiveTask<Map<String, Audiobook>> {
+        private final File mAuthorDir;
+        private final Set<File> mDeleteSet;
+
+        private AuthorLoadTask(File authorDir, Set<File> deleteSet) {
+            mAuthorDir = authorDir;
+            mDeleteSet = deleteSet;
         }
 
-        for (File file : files) {
-            if (file.isDirectory()) {
-                Future<?> future = executor.submit(() -> loadHierarchicalData(context, file.listFiles(), deleteSet, executor, executorJobs));
-                synchronized (executorJobs) {
-                    executorJobs.add(future);
-                }
-            } else {
-                File titleDir = file.getParentFile();
-                synchronized (deleteSet) {
-                    if (deleteSet.contains(titleDir)) {
-                        continue;
-                    }
-                }
-                File authorDir = titleDir.getParentFile();
-                String author = authorDir.getName();
-                String title = titleDir.getName();
-
-                Map<String, Audiobook> bookMap;
-                Audiobook fileData;
-                synchronized (mHierarchicalData) {
-                    bookMap = mHierarchicalData.get(author);
-                    if (bookMap == null) {
-                        bookMap = new TreeMap<>();
-                        mHierarchicalData.put(author, bookMap);
-                    }
+        @Override
+        protected Map<String, Audiobook> compute() {
+            Map<String, Audiobook> bookMap = new TreeMap<>();
+            File[] titleDirs = mAuthorDir.listFiles();
+            if (titleDirs == null) {
+                return bookMap;
+            }
+
+            for (File titleDir : titleDirs) {
+                File[] files = titleDir.listFiles();
+                if (files == null) {
+                    continue;
                 }
-                synchronized (bookMap) {
-                    fileData = bookMap.get(titleDir.getName());
-                    if (fileData == null) {
-                        fileData = new Audiobook(author, title);
-                        bookMap.put(title, fileData);
-                    }
+                Audiobook fileData = new Audiobook(mAuthorDir.getName(), titleDir.getName());
+                if (loadLegacyAudiobook(fileData, files)) {
+                    bookMap.put(titleDir.getName(), fileData);
+                } else {
+                    mDeleteSet.add(titleDir);
                 }
-                // no need to synchronize fileData since threads are allocated at a directory level, not file level
-                if (file.getName().equals(POSITION_FILE_NAME)) {
-                    try (Scanner scanner = new Scanner(file)) {
-                        while (scanner.hasNextLine()) {
-                            String s = scanner.nextLine();
-                            if (s.startsWith("track=")) {
-                                fileData.setCurrentTrack(Integer.parseInt(s.substring(6)));
-                            } else if (s.startsWith("position=")) {
-                                fileData.setCurrentPosition(Integer.parseInt(s.substring(9)));
-                            }
-                        }
-                    } catch (FileNotFoundException e) {
-                        continue;
-                    }
-                } else if (file.getName().equals(COVER_FILE_NAME)) {
-                    fileData.setCoverArtFile(file);
-                } else if (file.getName().equals(TRACKS_FILE_NAME)) {
-                    try {
-                        final JSONObject obj = new JSONObject(new String(Files.readAllBytes(file.toPath())));
-                        final JSONArray trackData = obj.getJSONArray("tracks");
-                        final int trackDataLength = trackData.length();
-                        for (int i = 0; i < trackDataLength; i++) {
-                            final JSONObject trackObj = trackData.getJSONObject(i);
-                            final TrackInfo trackInfo = new TrackInfo();
-                            trackInfo.setUri(Uri.parse(trackObj.getString("uri")));
-                            int checkUriExists = UriUtil.checkUriExists(context, trackInfo.getUri());
-                            if (checkUriExists == 1) {
-                                trackInfo.setTrackNum(trackObj.getInt("num"));
-                                trackInfo.setLength(trackObj.getInt("length"));
-                                trackInfo.setChapter(trackObj.getString("chapter"));
-                                fileData.addTrack(trackInfo);
-                            } else {
-                                synchronized (deleteSet) {
-                                    deleteSet.add(titleDir);
-                                }
-                                break;
-                            }
-                        }
-                    } catch (IOException | JSONException e) {
-                        synchronized (deleteSet) {
-                            deleteSet.add(titleDir);
+            }
+            return bookMap;
+        }
+    }
+
+    private boolean loadLegacyAudiobook(Audiobook fileData, File[] files) {
+        for (File file : files) {
+            if (file.getName().equals(POSITION_FILE_NAME)) {
+                try (Scanner scanner = new Scanner(file)) {
+                    while (scanner.hasNextLine()) {
+                        String s = scanner.nextLine();
+                        if (s.startsWith("track=")) {
+                            fileData.setCurrentTrack(Integer.parseInt(s.substring(6)));
+                        } else if (s.startsWith("position=")) {
+                            fileData.setCurrentPosition(Integer.parseInt(s.substring(9)));
                         }
                     }
+                } catch (FileNotFoundException e) {
+                    continue;
+                }
+            } else if (file.getName().equals(COVER_FILE_NAME)) {
+                fileData.setCoverArtFile(file);
+            } else if (file.getName().equals(TRACKS_FILE_NAME)) {
+                try (JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)))) {
+                    readLegacyTracks(reader, fileData);
+                } catch (IOException | IllegalStateException | NumberFormatException e) {
+                    return false;
                 }
             }
         }
+        return true;
     }
 
-    private void findAndSaveCoverArt(Context context, Map<String, Map<String, Audiobook>> hierarchicalData) {
-        try {
-            if (!mDataDir.exists() && !mDataDir.mkdir()) {
-                return; //TODO: handle
+    // streams the tracks out of a legacy trackinfo.json without building a document tree
+    private static void readLegacyTracks(JsonReader reader, Audiobook fileData) throws IOException {
+        // the old writer didn't quote the "tracks" key
+        reader.setLenient(true);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("tracks")) {
+                reader.skipValue();
+                continue;
             }
-
-            for (Map.Entry<String, Map<String, Audiobook>> authorEnt : hierarchicalData.entrySet()) {
-                File authorDir = new File(mDataDir, authorEnt.getKey());
-                for (Map.Entry<String, Audiobook> bookEnt : authorEnt.getValue().entrySet()) {
-                    File bookDir = new File(authorDir, bookEnt.getKey());
-                    if (!bookDir.exists() && !bookDir.mkdirs()) {
-                        return; // TODO: handle
-                    }
-
-                    // get and save cover art
-                    // first see if it is embedded in the first track
-                    // if it isn't, scan the directory for pictures and choose the first one found
-                    File destCoverFile = new File(bookDir, COVER_FILE_NAME);
-                    TrackInfo firstTrackInfo = bookEnt.getValue().getFirstTrack();
-                    ParcelFileDescriptor firstTrackPfd = context.getContentResolver().openFileDescriptor(firstTrackInfo.getUri(), "r");
-                    Bitmap cover = TagParser.parseCoverArt(firstTrackPfd.getFd());
-                    firstTrackPfd.close();
-                    if (cover == null) {DocumentFile[] files;
-                        try {
-                            files = firstTrackInfo.getDir().listFiles();
-                        } catch (NullPointerException e) {
-                            continue;
-                        }
-                        for (DocumentFile file : files) {
-                            // check if this is a file
-                            if (!file.isFile()) {
-                                continue;
-                            }
-
-                            // check if this is an image
-                            if (!context.getContentResolver().getType(file.getUri()).startsWith("image")) {
-                                continue;
-                            }
-
-                            // load bitmap
-                            try {
-                                cover = MediaStore.Images.Media.getBitmap(context.getContentResolver(), file.getUri());
-                                break;
-                            } catch (Exception e) {
-                                continue;
-                            }
-                        }
-                    }
-                    // save cover art
-                    if (cover != null) {
-                        FileOutputStream fOut = new FileOutputStream(destCoverFile);
-                        cover.compress(Bitmap.CompressFormat.JPEG, 100, fOut);
-                        fOut.flush();
-                        fOut.close();
-                        bookEnt.getValue().setCoverArtFile(destCoverFile);
+            reader.beginArray();
+            while (reader.hasNext()) {
+                TrackInfo trackInfo = new TrackInfo();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "num":
+                            trackInfo.setTrackNum(reader.nextInt());
+                            break;
+                        case "length":
+                            trackInfo.setLength(reader.nextInt());
+                            break;
+                        case "chapter":
+                            trackInfo.setChapter(reader.nextString());
+                            break;
+                        case "uri":
+                            trackInfo.setUri(Uri.parse(reader.nextString()));
+                            break;
+                        default:
+                            reader.skipValue();
+                            break;
                     }
                 }
+                reader.endObject();
+                if (trackInfo.getUri() == null || trackInfo.getChapter() == null) {
+                    throw new IOException("incomplete track");
+                }
+                fileData.addTrack(trackInfo);
             }
-        } catch (SecurityException | IOException e) {
-            deleteDatabase();
+            reader.endArray();
         }
+        reader.endObject();
     }
 
-    private void saveHierarchicalData(Map<String, Map<String, Audiobook>> hierarchicalData) {
+    // called by the tag parser as soon as it sees the first track of a book
+    void prefetchCoverArt(Audiobook audiobook, TrackInfo trackInfo) {
+        // books that are already in the library are left alone by the merge
+        if (findAudiobook(audiobook.getAuthor(), audiobook.getTitle()) == null) {
+            mCoverExtractor.submit(audiobook, trackInfo);
+        }
+    }
+
+    // called by the scanner for every directory it queued tracks from
+    void rememberCoverCandidates(Uri dir, List<DocumentEntry> images) {
+        mCoverExtractor.rememberImages(dir, images);
+    }
+
+    private void findAndSaveCoverArt(List<Audiobook> audiobooks, MergeStats stats, ScanProgress progress) {
         try {
             if (!mDataDir.exists() && !mDataDir.mkdir()) {
                 return; //TODO: handle
             }
 
-            for (Map.Entry<String, Map<String, Audiobook>> authorEnt : hierarchicalData.entrySet()) {
-                File authorDir = new File(mDataDir, authorEnt.getKey());
-                for (Map.Entry<String, Audiobook> bookEnt : authorEnt.getValue().entrySet()) {
-                    File bookDir = new File(authorDir, bookEnt.getKey());
-                    if (!bookDir.exists() && !bookDir.mkdirs()) {
-                        return; // TODO: handle
-                    }
-
-                    FileWriter fileWriter = new FileWriter(new File(bookDir, TRACKS_FILE_NAME));
-                    fileWriter.write("{");
-                    fileWriter.write(bookEnt.getValue().TracksToJsonArray());
-                    fileWriter.write("}");
-                    fileWriter.close();
-
-                    // save meta data
-                    PrintWriter printWriter = new PrintWriter(new File(bookDir, POSITION_FILE_NAME));
-                    printWriter.println("track=" + bookEnt.getValue().getCurrentTrack());
-                    printWriter.println("position=" + bookEnt.getValue().getCurrentPosition());
-                    printWriter.close();
+            // queue up whatever wasn't prefetched during the scan before waiting on anything
+            progress.coversQueued(audiobooks.size());
+            for (Audiobook audiobook : audiobooks) {
+                mCoverExtractor.submit(audiobook, audiobook.getFirstTrack());
+            }
+            for (Audiobook audiobook : audiobooks) {
+                // the book may have been deleted or renamed since the merge
+                if (findAudiobook(audiobook.getAuthor(), audiobook.getTitle()) != audiobook) {
+                    progress.coverDone(false);
+                    continue;
+                }
+                // a book whose cover can't be stored just goes without one
+                File bookDir = new File(new File(mDataDir, audiobook.getAuthor()), audiobook.getTitle());
+                boolean claimed = mCoverExtractor.claim(audiobook, bookDir);
+                if (claimed) {
+                    stats.incrementCoversWritten();
                 }
+                progress.coverDone(claimed);
             }
-        } catch (SecurityException | IOException e) {
-            deleteDatabase();
+        } finally {
+            mCoverExtractor.discardUnclaimed();
+            CoverArtExtractor.Timings timings = mCoverExtractor.getTimings();
+            stats.setCoverTimings(
+                    TimeUnit.NANOSECONDS.toMillis(timings.mReadNs.get()),
+                    TimeUnit.NANOSECONDS.toMillis(timings.mSearchNs.get()),
+                    TimeUnit.NANOSECONDS.toMillis(timings.mDecodeNs.get()),
+                    TimeUnit.NANOSECONDS.toMillis(timings.mEncodeNs.get()));
         }
     }
 
+    private void createMissingScaledCovers() {
+        boolean created = false;
+        for (Map.Entry<String, ConcurrentNavigableMap<String, Audiobook>> authorEnt : mHierarchicalData.entrySet()) {
+            for (Map.Entry<String, Audiobook> bookEnt : authorEnt.getValue().entrySet()) {
+                Audiobook audiobook = bookEnt.getValue();
+                if (audiobook.getCoverArtFile() != null && audiobook.getThumbnailFile() == null) {
+                    created |= mCoverExtractor.createScaledCovers(audiobook);
+                }
+            }
+        }
+
+        if (created) {
+            try {
+                saveIndex();
+            } catch (IOException | SecurityException e) {
+                // the scaled covers are recreated on the next start
+            }
+        }
+    }
 
     public File getDataDir() {
         return mDataDir;
     }
 
-    public void mergeHierarchicalData(Context context, Map<String, Map<String, Audiobook>> hierarchicalData) {
-        // first merge
-        for (Map.Entry<String, Map<String, Audiobook>> authorEnt : hierarchicalData.entrySet()) {
-            String author = authorEnt.getKey();
-            Map<String, Audiobook> bookMap = mHierarchicalData.get(author);
-            if (bookMap == null) {
-                mHierarchicalData.put(author, authorEnt.getValue());
-                continue;
+    ScanFingerprints getScanFingerprints() {
+        return mFingerprints;
+    }
+
+    TagCache getTagCache() {
+        return mTagCache;
+    }
+
+    TagSourceRouter getTagSourceRouter() {
+        return mTagSourceRouter;
+    }
+
+    // puts a book the scanner has finished with in the library right away, so it can be listed before the scan is over.
+    // covers and the index are still left to mergeHierarchicalData. returns false if the book is invalid or was
+    // already in the library before this scan
+    public boolean publishAudiobook(Audiobook audiobook) {
+        audiobook.sanitize();
+        if (!audiobook.isValid()) {
+            return false;
+        }
+        audiobook.setAvailability(Audiobook.Availability.AVAILABLE);
+        synchronized (this) {
+            if (!putAudiobook(audiobook.getAuthor(), audiobook.getTitle(), audiobook)
+                    && !replacePublished(audiobook.getAuthor(), audiobook.getTitle(), audiobook)) {
+                return false;
             }
-            for (Map.Entry<String, Audiobook> bookEnt : authorEnt.getValue().entrySet()) {
-                String title = bookEnt.getKey();
-                Audiobook fileData = bookMap.get(title);
-                if (fileData != null) {
-                    // if we already have this audiobook, delete it from the database
-                    //deleteAudiobook(author, title);
-                    // actually let's leave it alone
-                    continue;
-                }
-                // if the book map is empty it's been deleted from the hierarchical data structure
-                if (bookMap.isEmpty()) {
-                    mHierarchicalData.put(author, authorEnt.getValue());
-                    break;
-                } else {
-                    bookMap.put(title, bookEnt.getValue());
+            mPublished.add(audiobook);
+            // playback positions are stored by id, so the book needs one as soon as it can be played
+            assignBookId(audiobook);
+        }
+        return true;
+    }
+
+    public MergeStats mergeHierarchicalData(Context context, Map<String, Map<String, Audiobook>> hierarchicalData) {
+        return mergeHierarchicalData(context, hierarchicalData, new ScanProgress());
+    }
+
+    // only books that are new since the last save are validated, get cover art and count as written.
+    // the cover art counts go to the scan's progress, which is marked done once everything is saved
+    public MergeStats mergeHierarchicalData(Context context, Map<String, Map<String, Audiobook>> hierarchicalData, ScanProgress progress) {
+        MergeStats stats = new MergeStats();
+        progress.setPhase(ScanProgress.Phase.COVERS);
+
+        // books are sanitized and validated before they are published to readers
+        List<Audiobook> dirtyAudiobooks = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<String, Map<String, Audiobook>> authorEnt : hierarchicalData.entrySet()) {
+                for (Map.Entry<String, Audiobook> bookEnt : authorEnt.getValue().entrySet()) {
+                    Audiobook audiobook = bookEnt.getValue();
+                    audiobook.sanitize();
+                    if (!audiobook.isValid()) {
+                        continue;
+                    }
+                    // the scanner just opened every track of a new book
+                    audiobook.setAvailability(Audiobook.Availability.AVAILABLE);
+                    // if we already have this audiobook, leave it alone, unless this scan only published part of it
+                    if (putAudiobook(authorEnt.getKey(), bookEnt.getKey(), audiobook)
+                            || replacePublished(authorEnt.getKey(), bookEnt.getKey(), audiobook)) {
+                        stats.incrementBooksAdded();
+                        // only tracks that are in the library may be skipped by the next scan
+                        for (TrackInfo trackInfo : audiobook.tracksToArray()) {
+                            mFingerprints.confirm(trackInfo.getUri());
+                        }
+                    }
                 }
             }
-        }
+            mPublished.clear();
 
-        // now validate
-        List<Audiobook> invalidAudiobooks = new ArrayList<>();
-        for (Map.Entry<String, Map<String, Audiobook>> authorEnt : mHierarchicalData.entrySet()) {
-            for (Map.Entry<String, Audiobook> bookEnt : authorEnt.getValue().entrySet()) {
-                Audiobook audiobook = bookEnt.getValue();
-                audiobook.sanitize();
-                if (!audiobook.isValid()) {
-                    invalidAudiobooks.add(audiobook);
+            for (Map.Entry<String, ConcurrentNavigableMap<String, Audiobook>> authorEnt : mHierarchicalData.entrySet()) {
+                for (Map.Entry<String, Audiobook> bookEnt : authorEnt.getValue().entrySet()) {
+                    if (bookEnt.getValue().isDirty()) {
+                        dirtyAudiobooks.add(bookEnt.getValue());
+                    }
                 }
             }
         }
-        for (Audiobook invalidAudiobook : invalidAudiobooks) {
-            deleteAudiobook(invalidAudiobook.getAuthor(), invalidAudiobook.getTitle());
+        if (dirtyAudiobooks.isEmpty()) {
+            mFingerprints.endScan();
+            progress.end();
+            return stats;
         }
 
-        saveHierarchicalData(mHierarchicalData);
-        findAndSaveCoverArt(context, mHierarchicalData);
+        // cover art is extracted without holding the lock so that deletes and renames aren't held up
+        findAndSaveCoverArt(dirtyAudiobooks, stats, progress);
+        try {
+            saveIndex();
+            stats.setBooksWritten(dirtyAudiobooks.size());
+            mFingerprints.endScan();
+        } catch (IOException | SecurityException e) {
+            deleteDatabase();
+        }
+
+        progress.end();
+        return stats;
     }
 
     public List<AudiobookDataModel> loadAudiobooks() {
         List<AudiobookDataModel> audiobooks = new ArrayList<>();
-        for (Map.Entry<String, Map<String, Audiobook>> authorEnt : mHierarchicalData.entrySet()) {
+        for (Map.Entry<String, ConcurrentNavigableMap<String, Audiobook>> authorEnt : mHierarchicalData.entrySet()) {
             for (Map.Entry<String, Audiobook> bookEnt : authorEnt.getValue().entrySet()) {
                 AudiobookDataModel audiobook = AudiobookDataModel.createAudiobook(authorEnt.getKey(), bookEnt.getKey(), bookEnt.getValue());
                 audiobooks.add(audiobook);
@@ -445,32 +807,29 @@ public class Database {
         return audiobooks;
     }
 
-    public void updateLocation(AudiobookDataModel audiobook) throws IOException {
-        Map<String, Audiobook> bookMap = mHierarchicalData.get(audiobook.getAuthor());
-        if (bookMap == null) {
-            return;
-        }
-
-        Audiobook book = bookMap.get(audiobook.getTitle());
+    // a few stores into the mapped position table, so this can be called every few seconds during playback
+    public void updateLocation(AudiobookDataModel audiobook) {
+        Audiobook book = findAudiobook(audiobook.getAuthor(), audiobook.getTitle());
         if (book == null) {
             return;
         }
 
-        boolean different = book.getCurrentTrack() != audiobook.getCurrentTrack() || book.getCurrentPosition() != audiobook.getCurrentPosition();
+        boolean different = book.getCurrentTrack() != audiobook.getCurrentTrack()
+                || book.getCurrentPosition() != audiobook.getCurrentPosition()
+                || book.getPlaybackSpeed() != audiobook.getPlaybackSpeed();
         if (!different) {
             return;
         }
 
         book.setCurrentTrack(audiobook.getCurrentTrack());
         book.setCurrentPosition(audiobook.getCurrentPosition());
+        book.setPlaybackSpeed(audiobook.getPlaybackSpeed());
+        book.setLastPlayed(System.currentTimeMillis());
+        mPositions.write(book.getId(), book.getCurrentTrack(), book.getCurrentPosition(), book.getPlaybackSpeed(), book.getLastPlayed());
+    }
 
-        File authorDir = new File(mDataDir, audiobook.getAuthor());
-        File bookDir = new File(authorDir, audiobook.getTitle());
-        File positionFile = new File(bookDir, POSITION_FILE_NAME);
-
-        PrintWriter writer = new PrintWriter(positionFile);
-        writer.println("track=" + audiobook.getCurrentTrack());
-        writer.println("position=" + audiobook.getCurrentPosition());
-        writer.close();
+    // makes sure the position table has reached the disk, e.g. when playback is paused
+    public void flushLocations() {
+        mPositions.force();
     }
-}
\ No newline at end of file
+}
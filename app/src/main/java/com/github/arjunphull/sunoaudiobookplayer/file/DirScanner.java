@@ -4,86 +4,354 @@ import android.content.Context;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 
-import androidx.documentfile.provider.DocumentFile;
-
 import com.github.arjunphull.sunoaudiobookplayer.util.Triplet;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 public class DirScanner {
     private final int MAX_OPEN_FILES = 200;
-    private final int QUEUE_THRESHOLD = 15;
+    // half of the open file budget goes to batches: the one being filled plus one queued and one being parsed per parser
+    private final int MIN_BATCH_SIZE = 8;
+    private final int MAX_BATCH_SIZE = 32;
+    private final long FLUSH_DEADLINE_MS = 50;
     private final String FIFO_FILE_NAME = "fifo";
+    private final int WALKER_POLL_MS = 100;
+    private final int BENCHMARK_SAMPLE_SIZE = 32;
+    // put on the file queue once the walk is over
+    private static final Triplet<ParcelFileDescriptor, Uri, Uri> END_OF_WALK = Triplet.create(null, null, null);
 
     private final File mDataDir;
+    private final int mWalkerCount;
+    private AudioFileFilter mAudioFilter;
+    private int mParserCount;
+    private boolean mUseFifo;
+    private volatile OnBookCompleteListener mBookCompleteListener;
+    private final ScanProgress mProgress;
 
     public DirScanner(File dataDir) {
+        this(dataDir, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    // walkerCount directories are listed at once; 1 walks the tree on a single thread
+    public DirScanner(File dataDir, int walkerCount) {
         mDataDir = dataDir;
+        mWalkerCount = Math.max(1, walkerCount);
+        mAudioFilter = AudioFileFilter.DEFAULT;
+        mParserCount = Runtime.getRuntime().availableProcessors();
+        mUseFifo = false;
+        mBookCompleteListener = null;
+        mProgress = new ScanProgress();
+    }
+
+    // number of native tag parsers working in parallel, each on its own fifo
+    public void setParserCount(int parserCount) {
+        mParserCount = Math.max(1, parserCount);
+    }
+
+    // passes tags through the named pipes even when the native library has the batch api, for comparison
+    public void setUseFifo(boolean useFifo) {
+        mUseFifo = useFifo;
+    }
+
+    // called on a scanner thread as each book is complete, long before scanDirectory returns
+    public void setOnBookCompleteListener(OnBookCompleteListener listener) {
+        mBookCompleteListener = listener;
+    }
+
+    // counters for the scan that is running, or the last one. safe to sample from any thread
+    public ScanProgress getProgress() {
+        return mProgress;
+    }
+
+    // files that don't pass the filter are never opened
+    public void setAudioFileFilter(AudioFileFilter filter) {
+        mAudioFilter = filter;
+    }
+
+    // a directory waiting to be listed, along with the uri of the directory it was found in
+    private static class PendingDir {
+        final DocumentEntry mDir;
+        final String mParentUri;
+
+        PendingDir(DocumentEntry dir, String parentUri) {
+            mDir = dir;
+            mParentUri = parentUri;
+        }
     }
 
-    private void getFilesFromDocumentTree(Context context, DocumentFile dir, BlockingQueue<Triplet<ParcelFileDescriptor, Uri, DocumentFile>> fileQueue) {
-        DocumentFile[] documentFiles = dir.listFiles();
-        for (DocumentFile df : documentFiles) {
-            if (df.isDirectory()) {
-                getFilesFromDocumentTree(context, df, fileQueue);
-            } else if (df.isFile()) {
+    // walkers pull directories off a shared queue, so slow provider queries for one directory don't hold up the others.
+    // the walk is done once no directory is queued or being listed. returns false if it was cut short
+    private boolean getFilesFromDocumentTree(Context context, DocumentEntry root, ScanFingerprints fingerprints, BookCompletionTracker completionTracker, Consumer<List<TrackInfo>> cachedTrackSink, BlockingQueue<Triplet<ParcelFileDescriptor, Uri, Uri>> fileQueue) throws InterruptedException {
+        BlockingQueue<PendingDir> dirQueue = new LinkedBlockingQueue<>();
+        AtomicInteger outstandingDirs = new AtomicInteger(1);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        dirQueue.add(new PendingDir(root, ""));
+
+        Thread[] walkers = new Thread[mWalkerCount];
+        for (int i = 0; i < walkers.length; i++) {
+            walkers[i] = new Thread(() -> {
                 try {
-                    Uri docUri = df.getUri();
-                    ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(docUri, "r");
-                    fileQueue.put(Triplet.create(pfd, docUri, dir));
-                } catch (IOException e) {
-                    continue;
-                } catch (InterruptedException e) {
-                    break;
+                    while (outstandingDirs.get() > 0 && !failed.get()) {
+                        PendingDir pendingDir = dirQueue.poll(WALKER_POLL_MS, TimeUnit.MILLISECONDS);
+                        if (pendingDir == null) {
+                            continue;
+                        }
+                        try {
+                            listDirectory(context, pendingDir, fingerprints, completionTracker, cachedTrackSink, dirQueue, outstandingDirs, fileQueue);
+                        } finally {
+                            outstandingDirs.decrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException | RuntimeException e) {
+                    // the other walkers stop too; an incomplete walk must not be fingerprinted
+                    failed.set(true);
+                }
+            });
+            walkers[i].start();
+        }
+
+        try {
+            for (Thread walker : walkers) {
+                walker.join();
+            }
+        } catch (InterruptedException e) {
+            for (Thread walker : walkers) {
+                walker.interrupt();
+            }
+            throw e;
+        }
+        return !failed.get();
+    }
+
+    // only audio files that are new or changed since the last scan are opened and queued for the tag parser.
+    // each directory is listed with a single provider query that already carries every column needed below,
+    // and every directory is listed because a file replaced in place doesn't touch its parents' modification time
+    private void listDirectory(Context context, PendingDir pendingDir, ScanFingerprints fingerprints, BookCompletionTracker completionTracker, Consumer<List<TrackInfo>> cachedTrackSink, BlockingQueue<PendingDir> dirQueue, AtomicInteger outstandingDirs, BlockingQueue<Triplet<ParcelFileDescriptor, Uri, Uri>> fileQueue) throws InterruptedException {
+        DocumentEntry dir = pendingDir.mDir;
+        List<DocumentEntry> children = DocumentEntry.listChildren(context, dir.mUri);
+        String dirUri = dir.mUri.toString();
+        fingerprints.record(dirUri, pendingDir.mParentUri, true, dir.mLastModified, children.size());
+        mProgress.dirWalked();
+
+        List<DocumentEntry> images = new ArrayList<>();
+        List<DocumentEntry> tracks = new ArrayList<>();
+        for (DocumentEntry child : children) {
+            String docUri = child.mUri.toString();
+            if (child.isDirectory()) {
+                // counted before it is queued so the walkers can't see zero outstanding directories in between
+                outstandingDirs.incrementAndGet();
+                dirQueue.add(new PendingDir(child, dirUri));
+            } else if (child.isImage()) {
+                images.add(child);
+                mProgress.fileDiscovered();
+                mProgress.fileFiltered();
+            } else if (child.isFile() && mAudioFilter.accept(child.mName, child.mMimeType)) {
+                mProgress.fileDiscovered();
+                if (fingerprints.isUnchanged(docUri, child.mLastModified, child.mSize)) {
+                    fingerprints.record(docUri, dirUri, false, child.mLastModified, child.mSize);
+                    mProgress.fileUnchanged();
+                } else {
+                    tracks.add(child);
+                }
+            } else if (child.isFile()) {
+                mProgress.fileDiscovered();
+                mProgress.fileFiltered();
+            }
+        }
+        if (tracks.isEmpty()) {
+            return;
+        }
+
+        // the cover search for books found here can use this listing instead of making its own
+        Database database = Database.getInstance(context);
+        database.rememberCoverCandidates(dir.mUri, images);
+        TagCache tagCache = database.getTagCache();
+        List<TrackInfo> cachedTracks = new ArrayList<>();
+        completionTracker.listing(dir.mUri);
+        for (DocumentEntry track : tracks) {
+            // tags parsed before, e.g. under another root, don't need the file opened at all
+            TrackInfo cached = tagCache.get(track.mUri, track.mSize, track.mLastModified);
+            if (cached != null) {
+                cached.setDir(dir.mUri);
+                completionTracker.fileQueued(dir.mUri);
+                mProgress.fileQueued();
+                // the size is all the file would have cost to read
+                mProgress.bytesParsed(track.mSize);
+                cachedTracks.add(cached);
+                fingerprints.expect(track.mUri.toString(), dirUri, track.mLastModified, track.mSize);
+                continue;
+            }
+            try {
+                ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(track.mUri, "r");
+                tagCache.expect(track.mUri, track.mSize, track.mLastModified);
+                completionTracker.fileQueued(dir.mUri);
+                mProgress.fileQueued();
+                fileQueue.put(Triplet.create(pfd, track.mUri, dir.mUri));
+                fingerprints.expect(track.mUri.toString(), dirUri, track.mLastModified, track.mSize);
+            } catch (IOException e) {
+                continue;
+            }
+        }
+        if (!cachedTracks.isEmpty()) {
+            cachedTrackSink.accept(cachedTracks);
+        }
+        completionTracker.listed(dir.mUri);
+    }
+
+    // the first tracks of up to BENCHMARK_SAMPLE_SIZE books, so the sample spans as many formats as it can
+    private List<Uri> sampleTracks(Map<String, Map<String, Audiobook>> hierarchicalData) {
+        List<Uri> sample = new ArrayList<>();
+        for (Map<String, Audiobook> bookMap : hierarchicalData.values()) {
+            for (Audiobook audiobook : bookMap.values()) {
+                if (sample.size() >= BENCHMARK_SAMPLE_SIZE) {
+                    return sample;
+                }
+                if (audiobook.getNumTracks() > 0 && audiobook.getFirstTrack().getUri() != null) {
+                    sample.add(audiobook.getFirstTrack().getUri());
                 }
             }
         }
+        return sample;
     }
 
     public Map<String, Map<String, Audiobook>> scanDirectory(Context context, Uri dirUri) throws InterruptedException, IllegalArgumentException {
         Map<String, Map<String, Audiobook>> hierarchicalData = new TreeMap<>();
-        TagParser tagParser = new TagParser(context, new File(mDataDir.getParentFile(), FIFO_FILE_NAME));
-        BlockingQueue<Triplet<ParcelFileDescriptor, Uri, DocumentFile>> fileQueue = new ArrayBlockingQueue<>(MAX_OPEN_FILES / 2);
-        List<Triplet<ParcelFileDescriptor, Uri, DocumentFile>> transferFileList = new ArrayList<>(MAX_OPEN_FILES / 2);
-        AtomicBoolean iteratingTree = new AtomicBoolean(true);
+        // each parser runs its own native thread over its own fifo, or makes its own batch calls
+        List<TagParser> tagParsers = new ArrayList<>(mParserCount);
+        for (int i = 0; i < mParserCount; i++) {
+            tagParsers.add(new TagParser(context, new File(mDataDir.getParentFile(), FIFO_FILE_NAME + i), mUseFifo));
+        }
+        // every parser can hold a batch in flight and one queued behind it, so batches shrink as parsers are added
+        int maxBatchSize = Math.max(1, Math.min(MAX_BATCH_SIZE, MAX_OPEN_FILES / 2 / (2 * mParserCount + 1)));
+        int minBatchSize = Math.min(MIN_BATCH_SIZE, maxBatchSize);
+        // every walker can hold one more open file while it waits for room, so the queue shrinks to keep the same budget
+        BlockingQueue<Triplet<ParcelFileDescriptor, Uri, Uri>> fileQueue = new ArrayBlockingQueue<>(Math.max(1, MAX_OPEN_FILES / 2 - mWalkerCount));
+        AtomicBoolean walkedTree = new AtomicBoolean(false);
+        ScanFingerprints fingerprints = Database.getInstance(context).getScanFingerprints();
+        TagCache tagCache = Database.getInstance(context).getTagCache();
+        // completed books are handed out as copies, since a later directory may still add tracks to them
+        BookCompletionTracker completionTracker = new BookCompletionTracker(audiobook -> {
+            OnBookCompleteListener listener = mBookCompleteListener;
+            if (listener == null) {
+                return;
+            }
+            Audiobook copy;
+            synchronized (hierarchicalData) {
+                copy = audiobook.copy();
+            }
+            listener.onBookComplete(copy);
+        });
+        for (TagParser tagParser : tagParsers) {
+            tagParser.setCompletionTracker(completionTracker);
+            tagParser.setProgress(mProgress);
+        }
+        // cached tags are filed by the walkers themselves, so their books can complete without waiting for the parsers
+        Consumer<List<TrackInfo>> cachedTrackSink = trackInfos -> tagParsers.get(0).addCachedTracks(trackInfos, hierarchicalData);
+        DocumentEntry root = DocumentEntry.fromTreeUri(context, dirUri);
+        if (root == null) {
+            throw new IllegalArgumentException("unable to read " + dirUri);
+        }
 
         // iterate directory tree asynchronously
+        mProgress.begin();
+        fingerprints.beginScan();
         Thread t = new Thread(() -> {
-            getFilesFromDocumentTree(context, DocumentFile.fromTreeUri(context, dirUri), fileQueue);
-            iteratingTree.set(false);
+            try {
+                walkedTree.set(getFilesFromDocumentTree(context, root, fingerprints, completionTracker, cachedTrackSink, fileQueue));
+            } catch (InterruptedException e) {
+                // do nothing
+            }
+            // the scan thread is still draining the queue, so there will be room
+            boolean signalled = false;
+            while (!signalled) {
+                try {
+                    fileQueue.put(END_OF_WALK);
+                    signalled = true;
+                } catch (InterruptedException e) {
+                    // try again
+                }
+            }
         });
         t.start();
 
-        ArrayDeque<Triplet<ParcelFileDescriptor, Uri, DocumentFile>> buffer = new ArrayDeque<>(QUEUE_THRESHOLD*3);
-        while (iteratingTree.get() || !fileQueue.isEmpty() || !transferFileList.isEmpty()) {
-            fileQueue.drainTo(buffer);
-            while (!buffer.isEmpty()) {
-                transferFileList.add(buffer.poll());
+        // a batch goes to the tag parser as soon as it is full or FLUSH_DEADLINE_MS after its first file arrived.
+        // the batch size grows while the walker is ahead of the parser and shrinks again when files trickle in
+        List<Triplet<ParcelFileDescriptor, Uri, Uri>> batch = new ArrayList<>(maxBatchSize);
+        int batchSize = minBatchSize;
+        int nextParser = 0;
+        long deadline = 0;
+        boolean walking = true;
+        while (walking || !batch.isEmpty()) {
+            Triplet<ParcelFileDescriptor, Uri, Uri> file = null;
+            if (walking) {
+                file = batch.isEmpty() ? fileQueue.take() : fileQueue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+            while (file != null) {
+                if (file == END_OF_WALK) {
+                    walking = false;
+                    mProgress.setPhase(ScanProgress.Phase.PARSING);
+                    break;
+                }
+                if (batch.isEmpty()) {
+                    deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_DEADLINE_MS);
+                }
+                batch.add(file);
+                file = batch.size() < batchSize ? fileQueue.poll() : null;
             }
 
-            if (transferFileList.size() >= QUEUE_THRESHOLD || !iteratingTree.get()) {
-                tagParser.parseTagsAsync(transferFileList, hierarchicalData);
-                transferFileList.clear();
-            } else {
-                try {
-                    TimeUnit.MILLISECONDS.sleep(300);
-                } catch (InterruptedException e) {
-                    throw e;
+            boolean full = batch.size() >= batchSize;
+            if (!batch.isEmpty() && (full || !walking || System.nanoTime() >= deadline)) {
+                // prefer a parser with nothing queued; if they are all busy, wait on the next one in turn
+                TagParser tagParser = tagParsers.get(nextParser);
+                for (int i = 0; i < tagParsers.size(); i++) {
+                    TagParser candidate = tagParsers.get((nextParser + i) % tagParsers.size());
+                    if (candidate.canTakeBatch()) {
+                        tagParser = candidate;
+                        break;
+                    }
+                }
+                nextParser = (tagParsers.indexOf(tagParser) + 1) % tagParsers.size();
+                tagParser.parseTagsAsync(batch, hierarchicalData);
+                batch.clear();
+                if (full && fileQueue.size() >= batchSize) {
+                    batchSize = Math.min(batchSize * 2, maxBatchSize);
+                } else if (!full) {
+                    batchSize = Math.max(batchSize / 2, minBatchSize);
                 }
             }
         }
         t.join();
-        tagParser.release();
+        for (TagParser tagParser : tagParsers) {
+            tagParser.release();
+        }
+        tagCache.save();
+
+        // a partial walk would make the next scan skip what this one never reached. the fingerprints are only
+        // written by the merge, once the books they stand for are safely in the index
+        if (walkedTree.get()) {
+            fingerprints.walked(root.mUri.toString());
+        } else {
+            fingerprints.abortScan();
+        }
+
+        // the tag sources are compared on the user's own files once there are some; only new formats are timed again
+        List<Uri> sample = sampleTracks(hierarchicalData);
+        if (!sample.isEmpty()) {
+            TagSourceRouter router = Database.getInstance(context).getTagSourceRouter();
+            router.benchmarkInBackground(context, sample);
+        }
 
         return hierarchicalData;
     }
@@ -0,0 +1,85 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * One row of a DocumentsContract query. A directory's children are listed
+ * with a single query that also returns everything the scanner needs to know
+ * about each of them, rather than one provider round trip per child and per
+ * attribute as with DocumentFile.
+ *
+ * Uris are document uris built on the tree the user picked, the same ones
+ * DocumentFile hands out, so they can be stored and opened as before.
+ */
+class DocumentEntry {
+    private static final String[] PROJECTION = {
+            DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+            DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+            DocumentsContract.Document.COLUMN_MIME_TYPE,
+            DocumentsContract.Document.COLUMN_SIZE,
+            DocumentsContract.Document.COLUMN_LAST_MODIFIED
+    };
+
+    final String mDocumentId;
+    final Uri mUri;
+    final String mName;
+    final String mMimeType;
+    final long mSize;
+    final long mLastModified;
+
+    private DocumentEntry(Uri treeUri, Cursor cursor) {
+        mDocumentId = cursor.getString(0);
+        mUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, mDocumentId);
+        mName = cursor.isNull(1) ? "" : cursor.getString(1);
+        mMimeType = cursor.isNull(2) ? "" : cursor.getString(2);
+        mSize = cursor.isNull(3) ? 0 : cursor.getLong(3);
+        mLastModified = cursor.isNull(4) ? 0 : cursor.getLong(4);
+    }
+
+    boolean isDirectory() {
+        return DocumentsContract.Document.MIME_TYPE_DIR.equals(mMimeType);
+    }
+
+    boolean isFile() {
+        return !isDirectory() && !mMimeType.isEmpty();
+    }
+
+    boolean isImage() {
+        return isFile() && mMimeType.startsWith("image");
+    }
+
+    // the root of a tree picked with ACTION_OPEN_DOCUMENT_TREE, or null if it can't be read
+    static DocumentEntry fromTreeUri(Context context, Uri treeUri) {
+        Uri rootUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, DocumentsContract.getTreeDocumentId(treeUri));
+        try (Cursor cursor = context.getContentResolver().query(rootUri, PROJECTION, null, null, null)) {
+            return cursor != null && cursor.moveToFirst() ? new DocumentEntry(treeUri, cursor) : null;
+        } catch (RuntimeException e) {
+            // providers report a missing or revoked document with all sorts of runtime exceptions
+            return null;
+        }
+    }
+
+    // dirUri is the document uri of a directory in a tree; returns an empty list if it can't be read
+    static List<DocumentEntry> listChildren(Context context, Uri dirUri) {
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(dirUri, DocumentsContract.getDocumentId(dirUri));
+        try (Cursor cursor = context.getContentResolver().query(childrenUri, PROJECTION, null, null, null)) {
+            if (cursor == null) {
+                return Collections.emptyList();
+            }
+            List<DocumentEntry> children = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                children.add(new DocumentEntry(dirUri, cursor));
+            }
+            return children;
+        } catch (RuntimeException e) {
+            return Collections.emptyList();
+        }
+    }
+}
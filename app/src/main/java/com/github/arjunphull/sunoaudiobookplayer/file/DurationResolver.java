@@ -0,0 +1,341 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+import android.content.Context;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Works out how long a track is when the tag parser couldn't say.
+ *
+ * The container headers are tried first, with a few small positional reads:
+ * the Xing/Info or VBRI frame count of an mp3 (or its bitrate for constant
+ * bitrate files), the mvhd box of an mp4, the last granule position of an
+ * ogg stream and the STREAMINFO block of a flac file. Only if none of those
+ * apply is MediaMetadataRetriever used, on a small pool of its own threads.
+ *
+ * Results, including failures, are cached by uri for the life of the process.
+ */
+class DurationResolver {
+    private static final int FALLBACK_THREADS = 2;
+    private static final int SCAN_SIZE = 64 * 1024;
+    private static final int MAX_BOXES = 1024;
+
+    private static final int[][] MP3_BITRATES = {
+            // mpeg 1 layer 1, 2, 3
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+            // mpeg 2 and 2.5 layer 1, then layers 2 and 3
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}
+    };
+    private static final int[][] MP3_SAMPLE_RATES = {
+            {11025, 12000, 8000},
+            {0, 0, 0},
+            {22050, 24000, 16000},
+            {44100, 48000, 32000}
+    };
+
+    private static DurationResolver sInstance = null;
+
+    private final Context mContext;
+    private final Map<String, Integer> mCache;
+    private final ThreadPoolExecutor mFallbackExecutor;
+
+    private DurationResolver(Context context) {
+        mContext = context;
+        mCache = new ConcurrentHashMap<>();
+        mFallbackExecutor = new ThreadPoolExecutor(FALLBACK_THREADS, FALLBACK_THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        mFallbackExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    static synchronized DurationResolver getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DurationResolver(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    // length in ms from the container headers alone, or -1. cheap enough to call while parsing tags
+    int resolveFromHeaders(Uri uri) {
+        Integer cached = mCache.get(uri.toString());
+        if (cached != null) {
+            return cached;
+        }
+        int length = readHeaders(uri);
+        if (length >= 0) {
+            mCache.put(uri.toString(), length);
+        }
+        return length;
+    }
+
+    // length in ms, or -1 if not even MediaMetadataRetriever knows. may take a while
+    int resolve(Uri uri) {
+        int length = resolveFromHeaders(uri);
+        if (length >= 0 || mCache.containsKey(uri.toString())) {
+            return length;
+        }
+        length = retrieve(uri);
+        mCache.put(uri.toString(), length);
+        return length;
+    }
+
+    // like resolve(), but on the fallback threads
+    CompletableFuture<Integer> resolveAsync(Uri uri) {
+        return CompletableFuture.supplyAsync(() -> resolve(uri), mFallbackExecutor);
+    }
+
+    private int readHeaders(Uri uri) {
+        try (ParcelFileDescriptor pfd = mContext.getContentResolver().openFileDescriptor(uri, "r");
+             FileInputStream in = pfd == null ? null : new FileInputStream(pfd.getFileDescriptor())) {
+            return in == null ? -1 : readDuration(in.getChannel());
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private int retrieve(Uri uri) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(mContext, uri);
+            String duration = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+            return duration == null ? -1 : Integer.parseInt(duration);
+        } catch (RuntimeException e) {
+            return -1;
+        } finally {
+            try {
+                retriever.release();
+            } catch (IOException e) {
+                // do nothing
+            }
+        }
+    }
+
+    // length in ms, or -1 if the format isn't recognized or the headers don't say
+    static int readDuration(FileChannel channel) throws IOException {
+        long size = channel.size();
+        ByteBuffer head = read(channel, 0, 12);
+        if (head.remaining() < 12) {
+            return -1;
+        }
+        if (startsWith(head, 0, "fLaC")) {
+            return flacDuration(channel);
+        }
+        if (startsWith(head, 0, "OggS")) {
+            return oggDuration(channel, size);
+        }
+        if (startsWith(head, 4, "ftyp")) {
+            return mp4Duration(channel, size);
+        }
+        long audioStart = 0;
+        if (startsWith(head, 0, "ID3")) {
+            int tagSize = ((head.get(6) & 0x7F) << 21) | ((head.get(7) & 0x7F) << 14) | ((head.get(8) & 0x7F) << 7) | (head.get(9) & 0x7F);
+            boolean hasFooter = (head.get(5) & 0x10) != 0;
+            audioStart = 10 + tagSize + (hasFooter ? 10 : 0);
+        }
+        return mp3Duration(channel, audioStart, size);
+    }
+
+    private static int mp3Duration(FileChannel channel, long audioStart, long size) throws IOException {
+        ByteBuffer scan = read(channel, audioStart, SCAN_SIZE);
+        for (int i = 0; i + 4 <= scan.limit(); i++) {
+            int header = scan.getInt(i);
+            if ((header & 0xFFE00000) != 0xFFE00000) {
+                continue;
+            }
+            int version = (header >> 19) & 3;
+            int layer = (header >> 17) & 3;
+            int bitrateIndex = (header >> 12) & 15;
+            int sampleRateIndex = (header >> 10) & 3;
+            if (version == 1 || layer == 0 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+                continue;
+            }
+            boolean mpeg1 = version == 3;
+            boolean mono = ((header >> 6) & 3) == 3;
+            int sampleRate = MP3_SAMPLE_RATES[version][sampleRateIndex];
+            int bitrate = MP3_BITRATES[mpeg1 ? 3 - layer : (layer == 3 ? 3 : 4)][bitrateIndex];
+            int samplesPerFrame = layer == 3 ? 384 : (layer == 2 || mpeg1 ? 1152 : 576);
+
+            // a vbr file says how many frames it has in its first frame
+            long frames = -1;
+            if (layer == 1) {
+                int xingOffset = i + 4 + (mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17));
+                if (xingOffset + 12 <= scan.limit() && (startsWith(scan, xingOffset, "Xing") || startsWith(scan, xingOffset, "Info"))
+                        && (scan.getInt(xingOffset + 4) & 1) != 0) {
+                    frames = scan.getInt(xingOffset + 8) & 0xFFFFFFFFL;
+                }
+                int vbriOffset = i + 36;
+                if (frames < 0 && vbriOffset + 18 <= scan.limit() && startsWith(scan, vbriOffset, "VBRI")) {
+                    frames = scan.getInt(vbriOffset + 14) & 0xFFFFFFFFL;
+                }
+            }
+            if (frames >= 0) {
+                return toInt(frames * samplesPerFrame * 1000 / sampleRate);
+            }
+
+            // otherwise assume a constant bitrate; kbps are bits per ms
+            long audioBytes = size - audioStart - i;
+            ByteBuffer tail = read(channel, size - 128, 3);
+            if (tail.remaining() == 3 && startsWith(tail, 0, "TAG")) {
+                audioBytes -= 128;
+            }
+            return toInt(audioBytes * 8 / bitrate);
+        }
+        return -1;
+    }
+
+    private static int mp4Duration(FileChannel channel, long size) throws IOException {
+        long[] moov = findBox(channel, 0, size, "moov");
+        if (moov == null) {
+            return -1;
+        }
+        long[] mvhd = findBox(channel, moov[0], moov[1], "mvhd");
+        if (mvhd == null) {
+            return -1;
+        }
+        ByteBuffer box = read(channel, mvhd[0], 32);
+        if (box.remaining() < 20) {
+            return -1;
+        }
+        long timescale;
+        long duration;
+        if (box.get(0) == 1) {
+            if (box.remaining() < 32) {
+                return -1;
+            }
+            timescale = box.getInt(20) & 0xFFFFFFFFL;
+            duration = box.getLong(24);
+        } else {
+            timescale = box.getInt(12) & 0xFFFFFFFFL;
+            duration = box.getInt(16) & 0xFFFFFFFFL;
+        }
+        return timescale <= 0 || duration < 0 ? -1 : toInt(duration * 1000 / timescale);
+    }
+
+    // returns the start and end of the contents of the first box of the given type between start and end
+    static long[] findBox(FileChannel channel, long start, long end, String type) throws IOException {
+        long pos = start;
+        for (int i = 0; i < MAX_BOXES && pos + 8 <= end; i++) {
+            ByteBuffer header = read(channel, pos, 16);
+            if (header.remaining() < 8) {
+                return null;
+            }
+            long boxSize = header.getInt(0) & 0xFFFFFFFFL;
+            int headerSize = 8;
+            if (boxSize == 1) {
+                if (header.remaining() < 16) {
+                    return null;
+                }
+                boxSize = header.getLong(8);
+                headerSize = 16;
+            } else if (boxSize == 0) {
+                boxSize = end - pos;
+            }
+            if (boxSize < headerSize) {
+                return null;
+            }
+            if (startsWith(header, 4, type)) {
+                return new long[]{pos + headerSize, Math.min(end, pos + boxSize)};
+            }
+            pos += boxSize;
+        }
+        return null;
+    }
+
+    private static int oggDuration(FileChannel channel, long size) throws IOException {
+        // the identification header is the first packet of the first page
+        ByteBuffer first = read(channel, 0, 27 + 255 + 20);
+        if (first.remaining() < 28) {
+            return -1;
+        }
+        int packetStart = 27 + (first.get(26) & 0xFF);
+        if (packetStart + 20 > first.limit()) {
+            return -1;
+        }
+        first.order(ByteOrder.LITTLE_ENDIAN);
+        long sampleRate;
+        long preSkip = 0;
+        if (first.get(packetStart) == 1 && startsWith(first, packetStart + 1, "vorbis")) {
+            sampleRate = first.getInt(packetStart + 12) & 0xFFFFFFFFL;
+        } else if (startsWith(first, packetStart, "OpusHead")) {
+            // opus granules always count 48 kHz samples
+            sampleRate = 48000;
+            preSkip = first.getShort(packetStart + 10) & 0xFFFF;
+        } else {
+            return -1;
+        }
+        if (sampleRate <= 0) {
+            return -1;
+        }
+
+        // the granule position of the last page is the number of samples in the stream
+        long tailStart = Math.max(0, size - SCAN_SIZE);
+        ByteBuffer tail = read(channel, tailStart, (int) (size - tailStart));
+        tail.order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = tail.limit() - 14; i >= 0; i--) {
+            if (startsWith(tail, i, "OggS")) {
+                long granule = tail.getLong(i + 6);
+                return granule < 0 ? -1 : toInt(Math.max(0, granule - preSkip) * 1000 / sampleRate);
+            }
+        }
+        return -1;
+    }
+
+    private static int flacDuration(FileChannel channel) throws IOException {
+        // STREAMINFO is always the first metadata block
+        ByteBuffer block = read(channel, 4, 4 + 18);
+        if (block.remaining() < 22 || (block.get(0) & 0x7F) != 0) {
+            return -1;
+        }
+        long bits = block.getLong(4 + 10);
+        long sampleRate = (bits >>> 44) & 0xFFFFF;
+        long totalSamples = bits & 0xFFFFFFFFFL;
+        return sampleRate == 0 || totalSamples == 0 ? -1 : toInt(totalSamples * 1000 / sampleRate);
+    }
+
+    // reads up to length bytes at pos; the buffer is big endian and may be short at the end of the file
+    static ByteBuffer read(FileChannel channel, long pos, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(0, length));
+        if (pos < 0) {
+            buffer.flip();
+            return buffer;
+        }
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, pos + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    static boolean startsWith(ByteBuffer buffer, int offset, String magic) {
+        if (offset < 0 || offset + magic.length() > buffer.limit()) {
+            return false;
+        }
+        for (int i = 0; i < magic.length(); i++) {
+            if (buffer.get(offset + i) != (byte) magic.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toInt(long ms) {
+        return ms < 0 || ms > Integer.MAX_VALUE ? -1 : (int) ms;
+    }
+}
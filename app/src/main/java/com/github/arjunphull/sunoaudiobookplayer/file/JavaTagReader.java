@@ -0,0 +1,443 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Reads artist, album, title and track number without the native library,
+ * from ID3v2 (2.2 to 2.4) and ID3v1 tags, the ilst items of an mp4 and the
+ * Vorbis comments of flac, ogg vorbis and opus files. The length comes from
+ * DurationResolver.readDuration.
+ *
+ * Only the tag region is read, with positional reads on the channel, and
+ * frames or items that aren't needed are skipped over rather than read.
+ * Anything it doesn't handle, like other formats or compressed and
+ * unsynchronised ID3 frames, makes read() return null so the native parser
+ * can take the file instead. So does an mp3 without any ID3 fields, since
+ * it may still have an APEv2 or other tag the native parser can read.
+ */
+class JavaTagReader {
+    private static final int MAX_TEXT_SIZE = 16 * 1024;
+    private static final int MAX_COMMENT_SIZE = 256 * 1024;
+    private static final int MAX_FRAMES = 4096;
+    private static final int MAX_OGG_PAGES = 64;
+
+    private String mArtist;
+    private String mAlbum;
+    private String mTitle;
+    private int mTrackNum = -1;
+
+    private JavaTagReader() {
+    }
+
+    // the channel is only read with positional reads, so the descriptor's offset is left alone for the native parser.
+    // the stream doesn't own the descriptor and is left open; the caller closes the ParcelFileDescriptor
+    static TrackInfo read(ParcelFileDescriptor pfd) {
+        try {
+            return read(new FileInputStream(pfd.getFileDescriptor()).getChannel());
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // the tags and length of the file, or null if the format isn't one this reader covers
+    static TrackInfo read(FileChannel channel) throws IOException {
+        JavaTagReader reader = new JavaTagReader();
+        if (!reader.readTags(channel)) {
+            return null;
+        }
+        TrackInfo trackInfo = new TrackInfo();
+        trackInfo.setAuthor(reader.mArtist);
+        trackInfo.setTitle(reader.mAlbum);
+        trackInfo.setChapter(reader.mTitle);
+        trackInfo.setTrackNum(reader.mTrackNum);
+        trackInfo.setLength(DurationResolver.readDuration(channel));
+        return trackInfo;
+    }
+
+    private boolean readTags(FileChannel channel) throws IOException {
+        long size = channel.size();
+        ByteBuffer head = DurationResolver.read(channel, 0, 10);
+        if (head.remaining() < 10) {
+            return false;
+        }
+        if (DurationResolver.startsWith(head, 0, "fLaC")) {
+            return readFlac(channel);
+        }
+        if (DurationResolver.startsWith(head, 0, "OggS")) {
+            return readOgg(channel);
+        }
+        if (DurationResolver.startsWith(head, 4, "ftyp")) {
+            return readMp4(channel, size);
+        }
+        if (DurationResolver.startsWith(head, 0, "ID3")) {
+            if (!readId3v2(channel, head)) {
+                return false;
+            }
+        } else if ((head.getShort(0) & 0xFFE0) != 0xFFE0 || ((head.get(1) >> 1) & 3) == 0) {
+            // not an mp3 frame either
+            return false;
+        }
+        readId3v1(channel, size);
+        return mArtist != null || mAlbum != null || mTitle != null || mTrackNum > 0;
+    }
+
+    private boolean readId3v2(FileChannel channel, ByteBuffer head) throws IOException {
+        int version = head.get(3);
+        int flags = head.get(5);
+        long end = 10 + syncSafe(head, 6);
+        if (version < 2 || version > 4 || (flags & 0x80) != 0 || (version == 2 && (flags & 0x40) != 0)) {
+            // whole tag unsynchronisation and v2.2 compression aren't handled
+            return false;
+        }
+        long pos = 10;
+        if ((flags & 0x40) != 0) {
+            ByteBuffer extended = DurationResolver.read(channel, pos, 4);
+            if (extended.remaining() < 4) {
+                return false;
+            }
+            // v2.4 counts the size field itself, v2.3 doesn't
+            pos += version == 4 ? syncSafe(extended, 0) : 4 + (extended.getInt(0) & 0xFFFFFFFFL);
+        }
+
+        int idLength = version == 2 ? 3 : 4;
+        int headerLength = version == 2 ? 6 : 10;
+        for (int i = 0; i < MAX_FRAMES && pos + headerLength <= end; i++) {
+            ByteBuffer header = DurationResolver.read(channel, pos, headerLength);
+            if (header.remaining() < headerLength || header.get(0) == 0) {
+                // padding
+                break;
+            }
+            long frameSize;
+            boolean unsupported = false;
+            // bytes between the frame header and the text
+            int skip = 0;
+            if (version == 2) {
+                frameSize = ((header.get(3) & 0xFF) << 16) | ((header.get(4) & 0xFF) << 8) | (header.get(5) & 0xFF);
+            } else if (version == 3) {
+                frameSize = header.getInt(4) & 0xFFFFFFFFL;
+                int frameFlags = header.get(9);
+                // compressed and encrypted frames aren't handled, a group id is skipped
+                unsupported = (frameFlags & 0xC0) != 0;
+                skip = (frameFlags & 0x20) != 0 ? 1 : 0;
+            } else {
+                frameSize = syncSafe(header, 4);
+                int frameFlags = header.get(9);
+                // compressed, encrypted and unsynchronised frames aren't handled. a group id and the data
+                // length indicator come before the text, in that order
+                unsupported = (frameFlags & 0x0E) != 0;
+                skip = ((frameFlags & 0x40) != 0 ? 1 : 0) + ((frameFlags & 0x01) != 0 ? 4 : 0);
+            }
+
+            String id = new String(header.array(), 0, idLength, StandardCharsets.ISO_8859_1);
+            int field = fieldOf(id);
+            if (field >= 0) {
+                if (unsupported || frameSize < skip) {
+                    return false;
+                }
+                ByteBuffer body = DurationResolver.read(channel, pos + headerLength + skip, (int) Math.min(frameSize - skip, MAX_TEXT_SIZE));
+                setField(field, decodeText(body));
+            }
+            pos += headerLength + frameSize;
+        }
+        return true;
+    }
+
+    // 0 artist, 1 album, 2 title, 3 track, or -1 for frames that aren't needed
+    private static int fieldOf(String frameId) {
+        switch (frameId) {
+            case "TPE1":
+            case "TP1":
+                return 0;
+            case "TALB":
+            case "TAL":
+                return 1;
+            case "TIT2":
+            case "TT2":
+                return 2;
+            case "TRCK":
+            case "TRK":
+                return 3;
+            default:
+                return -1;
+        }
+    }
+
+    // the first value of an ID3v2 text frame
+    private static String decodeText(ByteBuffer body) {
+        if (body.remaining() < 1) {
+            return null;
+        }
+        Charset charset;
+        boolean wide = false;
+        switch (body.get(0)) {
+            case 1:
+                charset = StandardCharsets.UTF_16;
+                wide = true;
+                break;
+            case 2:
+                charset = StandardCharsets.UTF_16BE;
+                wide = true;
+                break;
+            case 3:
+                charset = StandardCharsets.UTF_8;
+                break;
+            default:
+                charset = StandardCharsets.ISO_8859_1;
+                break;
+        }
+        int end = 1;
+        if (wide) {
+            while (end + 1 < body.limit() && (body.get(end) != 0 || body.get(end + 1) != 0)) {
+                end += 2;
+            }
+        } else {
+            while (end < body.limit() && body.get(end) != 0) {
+                end++;
+            }
+        }
+        return new String(body.array(), 1, end - 1, charset).trim();
+    }
+
+    // ID3v1 only fills in what an ID3v2 tag didn't have
+    private void readId3v1(FileChannel channel, long size) throws IOException {
+        ByteBuffer tag = DurationResolver.read(channel, size - 128, 128);
+        if (tag.remaining() < 128 || !DurationResolver.startsWith(tag, 0, "TAG")) {
+            return;
+        }
+        if (mTitle == null) {
+            mTitle = latin1(tag, 3, 30);
+        }
+        if (mArtist == null) {
+            mArtist = latin1(tag, 33, 30);
+        }
+        if (mAlbum == null) {
+            mAlbum = latin1(tag, 63, 30);
+        }
+        // v1.1 keeps the track number in the last byte of the comment
+        if (mTrackNum < 0 && tag.get(125) == 0 && tag.get(126) != 0) {
+            mTrackNum = tag.get(126) & 0xFF;
+        }
+    }
+
+    private static String latin1(ByteBuffer buffer, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && buffer.get(end) != 0) {
+            end++;
+        }
+        String s = new String(buffer.array(), offset, end - offset, StandardCharsets.ISO_8859_1).trim();
+        return s.isEmpty() ? null : s;
+    }
+
+    private boolean readMp4(FileChannel channel, long size) throws IOException {
+        long[] moov = DurationResolver.findBox(channel, 0, size, "moov");
+        long[] udta = moov == null ? null : DurationResolver.findBox(channel, moov[0], moov[1], "udta");
+        long[] meta = udta == null ? null : DurationResolver.findBox(channel, udta[0], udta[1], "meta");
+        if (meta == null) {
+            // no metadata, but still an mp4 the native parser wouldn't do better with
+            return moov != null;
+        }
+        // meta is a full box in iso files but not in some quicktime ones
+        ByteBuffer metaStart = DurationResolver.read(channel, meta[0], 8);
+        long childrenStart = DurationResolver.startsWith(metaStart, 4, "hdlr") ? meta[0] : meta[0] + 4;
+        long[] ilst = DurationResolver.findBox(channel, childrenStart, meta[1], "ilst");
+        if (ilst == null) {
+            return true;
+        }
+
+        long pos = ilst[0];
+        for (int i = 0; i < MAX_FRAMES && pos + 8 <= ilst[1]; i++) {
+            ByteBuffer header = DurationResolver.read(channel, pos, 8);
+            if (header.remaining() < 8) {
+                break;
+            }
+            long itemSize = header.getInt(0) & 0xFFFFFFFFL;
+            if (itemSize < 8) {
+                break;
+            }
+            int field = DurationResolver.startsWith(header, 4, "\u00A9ART") ? 0
+                    : DurationResolver.startsWith(header, 4, "\u00A9alb") ? 1
+                    : DurationResolver.startsWith(header, 4, "\u00A9nam") ? 2
+                    : DurationResolver.startsWith(header, 4, "trkn") ? 3 : -1;
+            if (field >= 0) {
+                // the value is in a data box: size, "data", type, locale, then the payload
+                ByteBuffer item = DurationResolver.read(channel, pos + 8, (int) Math.min(itemSize - 8, MAX_TEXT_SIZE));
+                if (item.remaining() >= 16 && DurationResolver.startsWith(item, 4, "data")) {
+                    int dataEnd = (int) Math.min(item.limit(), item.getInt(0) & 0xFFFFFFFFL);
+                    if (field == 3) {
+                        if (dataEnd >= 20) {
+                            mTrackNum = item.getShort(18) & 0xFFFF;
+                        }
+                    } else if (dataEnd > 16) {
+                        setField(field, new String(item.array(), 16, dataEnd - 16, StandardCharsets.UTF_8).trim());
+                    }
+                }
+            }
+            pos += itemSize;
+        }
+        return true;
+    }
+
+    private boolean readFlac(FileChannel channel) throws IOException {
+        long pos = 4;
+        for (int i = 0; i < MAX_FRAMES; i++) {
+            ByteBuffer header = DurationResolver.read(channel, pos, 4);
+            if (header.remaining() < 4) {
+                break;
+            }
+            int type = header.get(0) & 0x7F;
+            int length = header.getInt(0) & 0xFFFFFF;
+            if (type == 4) {
+                ByteBuffer comments = DurationResolver.read(channel, pos + 4, Math.min(length, MAX_COMMENT_SIZE));
+                readVorbisComments(comments, 0);
+                break;
+            }
+            if ((header.get(0) & 0x80) != 0) {
+                break;
+            }
+            pos += 4 + length;
+        }
+        return true;
+    }
+
+    // the comment header is the second packet of the stream, and may span several pages
+    private boolean readOgg(FileChannel channel) throws IOException {
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        byte[] firstBytes = null;
+        int packetIndex = 0;
+        long pos = 0;
+        for (int page = 0; page < MAX_OGG_PAGES && packetIndex < 2; page++) {
+            ByteBuffer header = DurationResolver.read(channel, pos, 27 + 255);
+            if (header.remaining() < 27 || !DurationResolver.startsWith(header, 0, "OggS")) {
+                break;
+            }
+            int segments = header.get(26) & 0xFF;
+            if (header.remaining() < 27 + segments) {
+                break;
+            }
+            int bodyLength = 0;
+            for (int i = 0; i < segments; i++) {
+                bodyLength += header.get(27 + i) & 0xFF;
+            }
+            ByteBuffer body = DurationResolver.read(channel, pos + 27 + segments, bodyLength);
+            if (firstBytes == null) {
+                firstBytes = new byte[Math.min(8, body.remaining())];
+                body.get(firstBytes);
+                body.rewind();
+                if (!isVorbisOrOpus(firstBytes)) {
+                    // flac in ogg, speex and the like are left to the native parser
+                    return false;
+                }
+            }
+
+            int offset = 0;
+            for (int i = 0; i < segments && packetIndex < 2; i++) {
+                int lacing = header.get(27 + i) & 0xFF;
+                int available = Math.max(0, Math.min(lacing, body.limit() - offset));
+                if (packetIndex == 1 && packet.size() < MAX_COMMENT_SIZE) {
+                    packet.write(body.array(), offset, available);
+                }
+                offset += lacing;
+                // a lacing value under 255 ends the packet
+                if (lacing < 255) {
+                    packetIndex++;
+                }
+            }
+            pos += 27 + segments + bodyLength;
+        }
+
+        byte[] comments = packet.toByteArray();
+        ByteBuffer buffer = ByteBuffer.wrap(comments);
+        if (comments.length > 7 && comments[0] == 3 && DurationResolver.startsWith(buffer, 1, "vorbis")) {
+            readVorbisComments(buffer, 7);
+        } else if (DurationResolver.startsWith(buffer, 0, "OpusTags")) {
+            readVorbisComments(buffer, 8);
+        }
+        return true;
+    }
+
+    private static boolean isVorbisOrOpus(byte[] firstBytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(firstBytes);
+        return (firstBytes.length >= 7 && firstBytes[0] == 1 && DurationResolver.startsWith(buffer, 1, "vorbis"))
+                || DurationResolver.startsWith(buffer, 0, "OpusHead");
+    }
+
+    // vendor string, then a count of KEY=value strings, all lengths little endian. a truncated block yields what it has
+    private void readVorbisComments(ByteBuffer buffer, int offset) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int limit = buffer.limit();
+        if (offset + 8 > limit) {
+            return;
+        }
+        long pos = offset + 4 + (buffer.getInt(offset) & 0xFFFFFFFFL);
+        if (pos + 4 > limit) {
+            return;
+        }
+        long count = buffer.getInt((int) pos) & 0xFFFFFFFFL;
+        pos += 4;
+        for (long i = 0; i < count && pos + 4 <= limit; i++) {
+            long length = buffer.getInt((int) pos) & 0xFFFFFFFFL;
+            pos += 4;
+            if (pos + length > limit) {
+                break;
+            }
+            String comment = new String(buffer.array(), (int) pos, (int) length, StandardCharsets.UTF_8);
+            pos += length;
+            int equals = comment.indexOf('=');
+            if (equals <= 0) {
+                continue;
+            }
+            String key = comment.substring(0, equals);
+            int field = key.equalsIgnoreCase("ARTIST") ? 0
+                    : key.equalsIgnoreCase("ALBUM") ? 1
+                    : key.equalsIgnoreCase("TITLE") ? 2
+                    : key.equalsIgnoreCase("TRACKNUMBER") ? 3 : -1;
+            if (field >= 0) {
+                setField(field, comment.substring(equals + 1).trim());
+            }
+        }
+    }
+
+    // the first value found wins; track numbers like "3/12" keep the part before the slash
+    private void setField(int field, String value) {
+        if (value == null || value.isEmpty()) {
+            return;
+        }
+        switch (field) {
+            case 0:
+                if (mArtist == null) {
+                    mArtist = value;
+                }
+                break;
+            case 1:
+                if (mAlbum == null) {
+                    mAlbum = value;
+                }
+                break;
+            case 2:
+                if (mTitle == null) {
+                    mTitle = value;
+                }
+                break;
+            case 3:
+                if (mTrackNum < 0) {
+                    int slash = value.indexOf('/');
+                    mTrackNum = TagRecordParser.parseInt(value, 0, slash < 0 ? value.length() : slash);
+                }
+                break;
+        }
+    }
+
+    private static long syncSafe(ByteBuffer buffer, int offset) {
+        return ((buffer.get(offset) & 0x7F) << 21) | ((buffer.get(offset + 1) & 0x7F) << 14)
+                | ((buffer.get(offset + 2) & 0x7F) << 7) | (buffer.get(offset + 3) & 0x7F);
+    }
+}
@@ -0,0 +1,20 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+import android.os.ParcelFileDescriptor;
+
+/*
+ * JavaTagReader as a TagSource: header only reads, no native code.
+ */
+class JavaTagSource implements TagSource {
+    static final String NAME = "java";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public TrackInfo read(ParcelFileDescriptor pfd) {
+        return JavaTagReader.read(pfd);
+    }
+}
@@ -0,0 +1,299 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+import android.net.Uri;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/*
+ * Single file library index. Layout (big endian):
+ *
+ *   header        magic, version, book count, track count, string count,
+ *                 book table offset, track table offset, string table offset,
+ *                 string table length, crc32 of the rest of the file followed
+ *                 by the header up to the checksum
+ *   book table    fixed width records: author, title, first track, track count,
+ *                 flags, book id
+ *   track table   fixed width records: track number, length, chapter, uri
+ *   string table  (string count + 1) offsets into a blob of utf-8 bytes
+ *
+ * Strings are referenced by their index in the string table, so authors and
+ * repeated chapter names are only stored once.
+ *
+ * Version 1 book records had the current track and position in place of the
+ * book id. Positions now live in the PositionStore, so the index only has to
+ * be rewritten when the library itself changes. Before version 3 the checksum
+ * left out the header.
+ */
+class LibraryIndex {
+    private static final int MAGIC = 0x53414249; // "SABI"
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 40;
+    private static final int CRC_OFFSET = 36;
+    private static final int BOOK_RECORD_SIZE_V1 = 28;
+    private static final int BOOK_RECORD_SIZE = 24;
+    private static final int TRACK_RECORD_SIZE = 16;
+    private static final int FLAG_HAS_COVER = 1;
+    private static final int FLAG_HAS_SCALED_COVERS = 2;
+    // the cover was stored as found and is a png rather than a jpeg
+    private static final int FLAG_COVER_PNG = 4;
+
+    private final File mFile;
+    private final File mTmpFile;
+
+    LibraryIndex(File file) {
+        mFile = file;
+        mTmpFile = new File(file.getPath() + ".tmp");
+    }
+
+    boolean exists() {
+        return mFile.exists();
+    }
+
+    boolean delete() {
+        mTmpFile.delete();
+        return !mFile.exists() || mFile.delete();
+    }
+
+    // returns null if the index is missing, truncated, corrupt or from an unknown version.
+    // books loaded from an index older than version 2 carry the positions that were stored in it
+    Map<String, Map<String, Audiobook>> load(File dataDir, String coverFileName, String pngCoverFileName, String thumbnailFileName, String playerCoverFileName) {
+        ByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(mFile.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException | SecurityException e) {
+            return null;
+        }
+
+        try {
+            int version = buf.getInt(4);
+            if (buf.getInt(0) != MAGIC || version < 1 || version > VERSION) {
+                return null;
+            }
+            int bookRecordSize = version == 1 ? BOOK_RECORD_SIZE_V1 : BOOK_RECORD_SIZE;
+            int bookCount = buf.getInt(8);
+            int trackCount = buf.getInt(12);
+            int stringCount = buf.getInt(16);
+            int bookTableOffset = buf.getInt(20);
+            int trackTableOffset = buf.getInt(24);
+            int stringTableOffset = buf.getInt(28);
+            int stringTableLength = buf.getInt(32);
+            int crc = buf.getInt(CRC_OFFSET);
+
+            CRC32 crc32 = new CRC32();
+            ByteBuffer body = buf.duplicate();
+            body.position(HEADER_SIZE);
+            crc32.update(body);
+            if (version >= 3) {
+                ByteBuffer header = buf.duplicate();
+                header.limit(CRC_OFFSET);
+                crc32.update(header);
+            }
+            if ((int) crc32.getValue() != crc) {
+                return null;
+            }
+
+            // the tables have to lie one after the other inside the file, or the counts are garbage
+            if (bookCount < 0 || trackCount < 0 || stringCount < 0 || stringTableLength < 0
+                    || bookTableOffset < HEADER_SIZE
+                    || (long) bookTableOffset + (long) bookCount * bookRecordSize > trackTableOffset
+                    || (long) trackTableOffset + (long) trackCount * TRACK_RECORD_SIZE > stringTableOffset
+                    || (long) stringTableOffset + stringTableLength != buf.limit()
+                    || (stringCount + 1L) * 4 > stringTableLength) {
+                return null;
+            }
+
+            String[] strings = readStrings(buf, stringTableOffset, stringCount);
+            Map<String, Map<String, Audiobook>> hierarchicalData = new TreeMap<>();
+            for (int i = 0; i < bookCount; i++) {
+                int pos = bookTableOffset + i * bookRecordSize;
+                String author = strings[buf.getInt(pos)];
+                String title = strings[buf.getInt(pos + 4)];
+                int firstTrack = buf.getInt(pos + 8);
+                int numTracks = buf.getInt(pos + 12);
+                int flags = buf.getInt(pos + (version == 1 ? 24 : 16));
+                if (firstTrack < 0 || numTracks < 0 || firstTrack + numTracks > trackCount) {
+                    return null;
+                }
+
+                Audiobook audiobook = new Audiobook(author, title);
+                // version 1 had no book ids; the database assigns fresh ones
+                audiobook.setId(version == 1 ? -1 : buf.getInt(pos + 20));
+                if (version == 1) {
+                    audiobook.setCurrentTrack(buf.getInt(pos + 16));
+                    audiobook.setCurrentPosition(buf.getInt(pos + 20));
+                }
+                File bookDir = new File(dataDir, author + File.separator + title);
+                if ((flags & FLAG_HAS_COVER) != 0) {
+                    audiobook.setCoverArtFile(new File(bookDir, (flags & FLAG_COVER_PNG) != 0 ? pngCoverFileName : coverFileName));
+                }
+                if ((flags & FLAG_HAS_SCALED_COVERS) != 0) {
+                    audiobook.setScaledCoverFiles(new File(bookDir, thumbnailFileName), new File(bookDir, playerCoverFileName));
+                }
+                for (int t = firstTrack; t < firstTrack + numTracks; t++) {
+                    int trackPos = trackTableOffset + t * TRACK_RECORD_SIZE;
+                    TrackInfo trackInfo = new TrackInfo();
+                    trackInfo.setTrackNum(buf.getInt(trackPos));
+                    trackInfo.setLength(buf.getInt(trackPos + 4));
+                    trackInfo.setChapter(strings[buf.getInt(trackPos + 8)]);
+                    trackInfo.setUri(Uri.parse(strings[buf.getInt(trackPos + 12)]));
+                    audiobook.addTrack(trackInfo);
+                }
+                audiobook.markClean();
+
+                Map<String, Audiobook> bookMap = hierarchicalData.get(author);
+                if (bookMap == null) {
+                    bookMap = new TreeMap<>();
+                    hierarchicalData.put(author, bookMap);
+                }
+                bookMap.put(title, audiobook);
+            }
+
+            return hierarchicalData;
+        } catch (RuntimeException e) {
+            // anything a damaged index trips over means it is rebuilt by a rescan
+            return null;
+        }
+    }
+
+    private String[] readStrings(ByteBuffer buf, int stringTableOffset, int stringCount) {
+        String[] strings = new String[stringCount];
+        int blobOffset = stringTableOffset + (stringCount + 1) * 4;
+        byte[] bytes = new byte[buf.limit() - blobOffset];
+        ByteBuffer blob = buf.duplicate();
+        blob.position(blobOffset);
+        blob.get(bytes);
+        for (int i = 0; i < stringCount; i++) {
+            int start = buf.getInt(stringTableOffset + i * 4);
+            int end = buf.getInt(stringTableOffset + (i + 1) * 4);
+            strings[i] = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+        }
+        return strings;
+    }
+
+    // records are streamed straight to the file; only the string table is kept in memory until the end
+    void save(Map<String, ? extends Map<String, Audiobook>> hierarchicalData) throws IOException {
+        List<byte[]> strings = new ArrayList<>();
+        Map<String, Integer> stringIds = new HashMap<>();
+        int bookCount = 0;
+        int trackCount = 0;
+        for (Map.Entry<String, ? extends Map<String, Audiobook>> authorEnt : hierarchicalData.entrySet()) {
+            for (Map.Entry<String, Audiobook> bookEnt : authorEnt.getValue().entrySet()) {
+                bookCount++;
+                trackCount += bookEnt.getValue().getNumTracks();
+            }
+        }
+        int bookTableOffset = HEADER_SIZE;
+        int trackTableOffset = bookTableOffset + bookCount * BOOK_RECORD_SIZE;
+        int stringTableOffset = trackTableOffset + trackCount * TRACK_RECORD_SIZE;
+
+        // write to a temporary file and rename it over the old index so a crash never leaves a torn index behind
+        File parent = mFile.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("unable to create " + parent);
+        }
+        CRC32 crc32 = new CRC32();
+        int stringTableLength;
+        try (FileOutputStream fos = new FileOutputStream(mTmpFile)) {
+            FileChannel channel = fos.getChannel();
+            // the header is written last, once the checksum is known
+            channel.position(HEADER_SIZE);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fos, crc32)));
+
+            int trackIndex = 0;
+            for (Map.Entry<String, ? extends Map<String, Audiobook>> authorEnt : hierarchicalData.entrySet()) {
+                for (Map.Entry<String, Audiobook> bookEnt : authorEnt.getValue().entrySet()) {
+                    Audiobook audiobook = bookEnt.getValue();
+                    int numTracks = audiobook.getNumTracks();
+                    out.writeInt(internString(authorEnt.getKey(), strings, stringIds));
+                    out.writeInt(internString(bookEnt.getKey(), strings, stringIds));
+                    out.writeInt(trackIndex);
+                    out.writeInt(numTracks);
+                    File coverArtFile = audiobook.getCoverArtFile();
+                    int flags = coverArtFile != null ? FLAG_HAS_COVER : 0;
+                    if (coverArtFile != null && coverArtFile.getName().endsWith(".png")) {
+                        flags |= FLAG_COVER_PNG;
+                    }
+                    if (audiobook.getThumbnailFile() != null && audiobook.getPlayerCoverFile() != null) {
+                        flags |= FLAG_HAS_SCALED_COVERS;
+                    }
+                    out.writeInt(flags);
+                    out.writeInt(audiobook.getId());
+                    trackIndex += numTracks;
+                }
+            }
+            for (Map.Entry<String, ? extends Map<String, Audiobook>> authorEnt : hierarchicalData.entrySet()) {
+                for (Map.Entry<String, Audiobook> bookEnt : authorEnt.getValue().entrySet()) {
+                    for (TrackInfo trackInfo : bookEnt.getValue().tracksToArray()) {
+                        out.writeInt(trackInfo.getTrackNum());
+                        out.writeInt(trackInfo.getLength());
+                        out.writeInt(internString(trackInfo.getChapter(), strings, stringIds));
+                        out.writeInt(internString(trackInfo.getUri().toString(), strings, stringIds));
+                    }
+                }
+            }
+
+            int offset = 0;
+            for (byte[] bytes : strings) {
+                out.writeInt(offset);
+                offset += bytes.length;
+            }
+            out.writeInt(offset);
+            for (byte[] bytes : strings) {
+                out.write(bytes);
+            }
+            out.flush();
+            stringTableLength = (strings.size() + 1) * 4 + offset;
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(bookCount);
+            header.putInt(trackCount);
+            header.putInt(strings.size());
+            header.putInt(bookTableOffset);
+            header.putInt(trackTableOffset);
+            header.putInt(stringTableOffset);
+            header.putInt(stringTableLength);
+            crc32.update(header.array(), 0, CRC_OFFSET);
+            header.putInt((int) crc32.getValue());
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+        if (!mTmpFile.renameTo(mFile)) {
+            mTmpFile.delete();
+            throw new IOException("unable to replace " + mFile);
+        }
+    }
+
+    private static int internString(String s, List<byte[]> strings, Map<String, Integer> stringIds) {
+        Integer id = stringIds.get(s);
+        if (id == null) {
+            id = strings.size();
+            strings.add(s.getBytes(StandardCharsets.UTF_8));
+            stringIds.put(s, id);
+        }
+        return id;
+    }
+}
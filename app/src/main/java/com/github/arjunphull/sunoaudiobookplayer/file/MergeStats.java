@@ -0,0 +1,71 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+public class MergeStats {
+    private int mBooksAdded;
+    private int mBooksWritten;
+    private int mCoversWritten;
+    private long mCoverReadMs;
+    private long mCoverSearchMs;
+    private long mCoverDecodeMs;
+    private long mCoverEncodeMs;
+
+    MergeStats() {
+        mBooksAdded = 0;
+        mBooksWritten = 0;
+        mCoversWritten = 0;
+    }
+
+    void incrementBooksAdded() {
+        mBooksAdded++;
+    }
+
+    void setBooksWritten(int booksWritten) {
+        mBooksWritten = booksWritten;
+    }
+
+    void incrementCoversWritten() {
+        mCoversWritten++;
+    }
+
+    // time spent in each cover art stage, summed over the extraction threads
+    void setCoverTimings(long readMs, long searchMs, long decodeMs, long encodeMs) {
+        mCoverReadMs = readMs;
+        mCoverSearchMs = searchMs;
+        mCoverDecodeMs = decodeMs;
+        mCoverEncodeMs = encodeMs;
+    }
+
+    public int getBooksAdded() {
+        return mBooksAdded;
+    }
+
+    public int getBooksWritten() {
+        return mBooksWritten;
+    }
+
+    public int getCoversWritten() {
+        return mCoversWritten;
+    }
+
+    public long getCoverReadMs() {
+        return mCoverReadMs;
+    }
+
+    public long getCoverSearchMs() {
+        return mCoverSearchMs;
+    }
+
+    public long getCoverDecodeMs() {
+        return mCoverDecodeMs;
+    }
+
+    public long getCoverEncodeMs() {
+        return mCoverEncodeMs;
+    }
+
+    @Override
+    public String toString() {
+        return "added=" + mBooksAdded + ", written=" + mBooksWritten + ", covers=" + mCoversWritten
+                + " (read=" + mCoverReadMs + "ms, search=" + mCoverSearchMs + "ms, decode=" + mCoverDecodeMs + "ms, encode=" + mCoverEncodeMs + "ms)";
+    }
+}
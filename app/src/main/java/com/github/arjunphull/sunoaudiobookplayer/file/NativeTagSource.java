@@ -0,0 +1,56 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+import android.os.ParcelFileDescriptor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * The native taglib parser through its batch api: one JNI call per batch,
+ * with the results in a direct buffer (see TagParser.readTagRecords). Only
+ * usable when the native library has the batch api; otherwise TagParser
+ * leaves the tag sources alone and speaks the fifo protocol instead.
+ */
+class NativeTagSource implements TagSource {
+    static final String NAME = "native";
+    private static final int INITIAL_RESULT_CAPACITY = 64 * 1024;
+
+    // each parser thread keeps its own buffer, grown as needed
+    private final ThreadLocal<ByteBuffer> mResults = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(INITIAL_RESULT_CAPACITY).order(ByteOrder.nativeOrder()));
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public TrackInfo read(ParcelFileDescriptor pfd) {
+        return read(Collections.singletonList(pfd))[0];
+    }
+
+    @Override
+    public TrackInfo[] read(List<ParcelFileDescriptor> pfds) {
+        TrackInfo[] trackInfos = new TrackInfo[pfds.size()];
+        int[] fileDescriptors = new int[pfds.size()];
+        for (int i = 0; i < fileDescriptors.length; i++) {
+            fileDescriptors[i] = pfds.get(i).getFd();
+        }
+
+        ByteBuffer results = mResults.get();
+        results.clear();
+        int written = TagParser.getTagInfoBatch(fileDescriptors, results);
+        if (written < 0) {
+            // the native side reports how much room it needs when the buffer is too small
+            results = ByteBuffer.allocateDirect(-written).order(ByteOrder.nativeOrder());
+            mResults.set(results);
+            written = TagParser.getTagInfoBatch(fileDescriptors, results);
+        }
+        if (written >= 0) {
+            results.limit(written);
+            TagParser.readTagRecords(results, pfds.size()).toArray(trackInfos);
+        }
+        return trackInfos;
+    }
+}
@@ -0,0 +1,5 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+public interface OnAvailabilityChangeListener {
+    void onAvailabilityChange(Audiobook audiobook);
+}
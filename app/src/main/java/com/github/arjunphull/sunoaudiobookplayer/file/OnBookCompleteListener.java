@@ -0,0 +1,5 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+public interface OnBookCompleteListener {
+    void onBookComplete(Audiobook audiobook);
+}
@@ -0,0 +1,129 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Memory mapped table of playback positions with one fixed size slot per book
+ * id. Layout (big endian):
+ *
+ *   header  magic, version
+ *   slots   track, position (ms), playback speed (float bits), flags,
+ *           last played time (8 bytes)
+ *
+ * Reading a slot is a handful of loads and updating one is a handful of
+ * stores into the mapping; the kernel writes the pages back on its own, and
+ * force() is only needed to survive a power loss.
+ */
+class PositionStore {
+    private static final int MAGIC = 0x53415053; // "SAPS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int SLOT_SIZE = 24;
+    private static final int INITIAL_SLOTS = 256;
+    private static final int FLAG_USED = 1;
+
+    private final File mFile;
+    private MappedByteBuffer mBuffer;
+    private int mCapacity;
+    private boolean mNew;
+
+    PositionStore(File file) {
+        mFile = file;
+        mBuffer = null;
+        mCapacity = 0;
+        mNew = !file.exists() || file.length() < HEADER_SIZE;
+    }
+
+    // true if there was no usable position table when the store was created
+    boolean isNew() {
+        return mNew;
+    }
+
+    // returns false if the book has never been played or the table can't be mapped
+    synchronized boolean read(Audiobook audiobook) {
+        int id = audiobook.getId();
+        if (id < 0 || !map(0) || id >= mCapacity) {
+            return false;
+        }
+        int pos = HEADER_SIZE + id * SLOT_SIZE;
+        if ((mBuffer.getInt(pos + 12) & FLAG_USED) == 0) {
+            return false;
+        }
+        audiobook.setCurrentTrack(mBuffer.getInt(pos));
+        audiobook.setCurrentPosition(mBuffer.getInt(pos + 4));
+        audiobook.setPlaybackSpeed(mBuffer.getFloat(pos + 8));
+        audiobook.setLastPlayed(mBuffer.getLong(pos + 16));
+        return true;
+    }
+
+    synchronized boolean write(int id, int track, int position, float speed, long lastPlayed) {
+        if (id < 0 || !map(id + 1)) {
+            return false;
+        }
+        int pos = HEADER_SIZE + id * SLOT_SIZE;
+        mBuffer.putInt(pos, track);
+        mBuffer.putInt(pos + 4, position);
+        mBuffer.putFloat(pos + 8, speed);
+        mBuffer.putInt(pos + 12, FLAG_USED);
+        mBuffer.putLong(pos + 16, lastPlayed);
+        return true;
+    }
+
+    synchronized void clear(int id) {
+        if (id < 0 || !map(0) || id >= mCapacity) {
+            return;
+        }
+        int pos = HEADER_SIZE + id * SLOT_SIZE;
+        for (int i = 0; i < SLOT_SIZE; i += 4) {
+            mBuffer.putInt(pos + i, 0);
+        }
+    }
+
+    synchronized void force() {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+    }
+
+    synchronized void delete() {
+        // the old mapping is released once it is garbage collected
+        mBuffer = null;
+        mCapacity = 0;
+        mFile.delete();
+    }
+
+    // maps the table so that it holds at least minSlots slots, growing the file if needed
+    private boolean map(int minSlots) {
+        if (mBuffer != null && minSlots <= mCapacity) {
+            return true;
+        }
+
+        try (FileChannel channel = FileChannel.open(mFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            int slots = (int) Math.max(0, (size - HEADER_SIZE) / SLOT_SIZE);
+            slots = Math.max(slots, Math.max(INITIAL_SLOTS, minSlots));
+            if (mCapacity > 0) {
+                slots = Math.max(slots, mCapacity * 2);
+            }
+            // mapping past the end of the file extends it with zeroed (i.e. unused) slots
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * SLOT_SIZE);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                for (int i = 0; i < buffer.limit(); i += 4) {
+                    buffer.putInt(i, 0);
+                }
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+            }
+            mBuffer = buffer;
+            mCapacity = slots;
+        } catch (IOException | SecurityException e) {
+            return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+import android.media.MediaMetadataRetriever;
+import android.os.ParcelFileDescriptor;
+
+import java.io.IOException;
+
+/*
+ * The platform's MediaMetadataRetriever as a TagSource. Slower than the
+ * others, but it reads whatever the device's media framework can play.
+ */
+class RetrieverTagSource implements TagSource {
+    static final String NAME = "retriever";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public TrackInfo read(ParcelFileDescriptor pfd) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(pfd.getFileDescriptor());
+            TrackInfo trackInfo = new TrackInfo();
+            trackInfo.setAuthor(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST));
+            trackInfo.setTitle(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUM));
+            trackInfo.setChapter(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TITLE));
+            trackInfo.setTrackNum(parseNumber(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_CD_TRACK_NUMBER)));
+            trackInfo.setLength(parseNumber(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION)));
+            return trackInfo;
+        } catch (RuntimeException e) {
+            return null;
+        } finally {
+            try {
+                retriever.release();
+            } catch (IOException e) {
+                // do nothing
+            }
+        }
+    }
+
+    // track numbers may come as "3/12"
+    private static int parseNumber(String value) {
+        if (value == null) {
+            return -1;
+        }
+        int slash = value.indexOf('/');
+        return TagRecordParser.parseInt(value, 0, slash < 0 ? value.length() : slash);
+    }
+}
@@ -0,0 +1,248 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+import android.net.Uri;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * What the previous scans saw, so that a rescan only has to open and parse
+ * what changed. Layout (big endian):
+ *
+ *   header   magic, version, entry count
+ *   entries  document uri, parent document uri ("" for a scan root), flags,
+ *            last modified, size (child count for directories)
+ *
+ * Every directory is still listed, since a file replaced in place doesn't
+ * change its parent's last modified time, but a file whose last modified time
+ * and size match its entry isn't opened again. Directories are recorded so
+ * that endScan() can find everything that was under the scan root.
+ *
+ * A file that had to be parsed only counts as seen once its track made it
+ * into the library, and nothing the scan saw is written until the library
+ * index has been saved, so a file is never skipped that the library doesn't
+ * have.
+ */
+class ScanFingerprints {
+    private static final int MAGIC = 0x53415346; // "SASF"
+    private static final int VERSION = 1;
+    private static final int FLAG_DIRECTORY = 1;
+
+    static class Entry {
+        final String mUri;
+        final String mParent;
+        final boolean mDirectory;
+        final long mLastModified;
+        final long mSize;
+
+        Entry(String uri, String parent, boolean directory, long lastModified, long size) {
+            mUri = uri;
+            mParent = parent;
+            mDirectory = directory;
+            mLastModified = lastModified;
+            mSize = size;
+        }
+    }
+
+    private final File mFile;
+    private final File mTmpFile;
+    // entries from the previous scans, loaded on first use
+    private Map<String, Entry> mEntries;
+    // entries seen by the scan in progress
+    private Map<String, Entry> mScanned;
+    // files of the scan in progress that were parsed, until their book is merged
+    private Map<String, Entry> mExpected;
+    // set once the scan in progress has walked its whole tree
+    private String mScanRoot;
+
+    ScanFingerprints(File file) {
+        mFile = file;
+        mTmpFile = new File(file.getPath() + ".tmp");
+        mEntries = null;
+        mScanned = null;
+        mExpected = null;
+        mScanRoot = null;
+    }
+
+    synchronized void beginScan() {
+        load();
+        mScanned = new HashMap<>();
+        mExpected = new HashMap<>();
+        mScanRoot = null;
+    }
+
+    // the previous scan's entry, or null if the document is new or was forgotten
+    synchronized Entry get(String uri) {
+        load();
+        return mEntries.get(uri);
+    }
+
+    // a last modified time of 0 means the provider doesn't know, so it never counts as unchanged
+    synchronized boolean isUnchanged(String uri, long lastModified, long size) {
+        Entry entry = get(uri);
+        return entry != null && lastModified > 0 && entry.mLastModified == lastModified && entry.mSize == size;
+    }
+
+    synchronized void record(String uri, String parent, boolean directory, long lastModified, long size) {
+        if (mScanned != null) {
+            mScanned.put(uri, new Entry(uri, parent, directory, lastModified, size));
+        }
+    }
+
+    // a file that is being parsed; it is only recorded if confirm() is called for it
+    synchronized void expect(String uri, String parent, long lastModified, long size) {
+        if (mExpected != null) {
+            mExpected.put(uri, new Entry(uri, parent, false, lastModified, size));
+        }
+    }
+
+    // called by the merge for each track of a book it put in the library
+    synchronized void confirm(Uri uri) {
+        if (mExpected == null || uri == null) {
+            return;
+        }
+        Entry entry = mExpected.remove(uri.toString());
+        if (entry != null) {
+            mScanned.put(entry.mUri, entry);
+        }
+    }
+
+    // the walk under root is complete, so endScan() may replace what the previous scans saw there
+    synchronized void walked(String rootUri) {
+        if (mScanned != null) {
+            mScanRoot = rootUri;
+        }
+    }
+
+    // everything the previous scans saw under the root is replaced by what this scan saw.
+    // called once the library index has been saved, and does nothing if the walk was cut short
+    synchronized void endScan() {
+        String rootUri = mScanRoot;
+        if (mScanned == null || rootUri == null) {
+            abortScan();
+            return;
+        }
+
+        Map<String, List<String>> children = new HashMap<>();
+        for (Entry entry : mEntries.values()) {
+            List<String> siblings = children.get(entry.mParent);
+            if (siblings == null) {
+                siblings = new ArrayList<>();
+                children.put(entry.mParent, siblings);
+            }
+            siblings.add(entry.mUri);
+        }
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push(rootUri);
+        while (!stack.isEmpty()) {
+            String uri = stack.pop();
+            mEntries.remove(uri);
+            List<String> childUris = children.remove(uri);
+            if (childUris != null) {
+                for (String childUri : childUris) {
+                    stack.push(childUri);
+                }
+            }
+        }
+        mEntries.putAll(mScanned);
+        abortScan();
+        save();
+    }
+
+    synchronized void abortScan() {
+        mScanned = null;
+        mExpected = null;
+        mScanRoot = null;
+    }
+
+    // makes the next scan parse these tracks again, e.g. after their book was removed from the library
+    synchronized void forget(List<Uri> uris) {
+        load();
+        boolean changed = false;
+        for (Uri uri : uris) {
+            changed |= forget(mEntries, uri.toString());
+            if (mScanned != null) {
+                forget(mScanned, uri.toString());
+            }
+        }
+        if (changed) {
+            save();
+        }
+    }
+
+    private static boolean forget(Map<String, Entry> entries, String uri) {
+        return entries.remove(uri) != null;
+    }
+
+    synchronized void delete() {
+        mEntries = new HashMap<>();
+        abortScan();
+        mTmpFile.delete();
+        mFile.delete();
+    }
+
+    private void load() {
+        if (mEntries != null) {
+            return;
+        }
+        mEntries = new HashMap<>();
+        if (!mFile.exists()) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String uri = in.readUTF();
+                String parent = in.readUTF();
+                int flags = in.readInt();
+                long lastModified = in.readLong();
+                long size = in.readLong();
+                mEntries.put(uri, new Entry(uri, parent, (flags & FLAG_DIRECTORY) != 0, lastModified, size));
+            }
+        } catch (IOException e) {
+            // a partial set of fingerprints would skip files that were never parsed
+            mEntries.clear();
+        }
+    }
+
+    private void save() {
+        // write to a temporary file and rename it over the old one so a crash never leaves a torn file behind
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mTmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mEntries.size());
+            for (Entry entry : mEntries.values()) {
+                out.writeUTF(entry.mUri);
+                out.writeUTF(entry.mParent);
+                out.writeInt(entry.mDirectory ? FLAG_DIRECTORY : 0);
+                out.writeLong(entry.mLastModified);
+                out.writeLong(entry.mSize);
+            }
+        } catch (IOException e) {
+            mTmpFile.delete();
+            // without the file the next scan is a full one, which is always safe
+            mFile.delete();
+            return;
+        }
+        if (!mTmpFile.renameTo(mFile)) {
+            mTmpFile.delete();
+            mFile.delete();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Counters for a scan in progress, bumped by the walkers, the tag parsers and
+ * the cover extraction as they go. Every counter is a plain atomic, so the
+ * scan pays next to nothing for them and a reader can sample them from any
+ * thread at any time; rates and the ETA are only worked out when asked for.
+ *
+ * The amount of work isn't known up front: files are counted as the walk
+ * finds them, and each new book is expected to need a cover until the merge
+ * says how many really do. Progress and ETA only cover what has been found
+ * so far, so both are optimistic until the walk is over.
+ */
+public class ScanProgress {
+    public enum Phase {
+        IDLE,
+        // directories are still being listed, more files may turn up
+        WALKING,
+        // every file has been found, tags are still being read
+        PARSING,
+        COVERS,
+        DONE
+    }
+
+    private volatile Phase mPhase;
+    private volatile long mStartNs;
+    private volatile long mEndNs;
+    private final AtomicInteger mDirsWalked;
+    private final AtomicInteger mFilesDiscovered;
+    private final AtomicInteger mFilesFiltered;
+    private final AtomicInteger mFilesUnchanged;
+    private final AtomicInteger mFilesQueued;
+    private final AtomicInteger mFilesParsed;
+    private final AtomicLong mBytesParsed;
+    private final AtomicInteger mBooksAssembled;
+    // -1 until the merge knows which books need a cover
+    private final AtomicInteger mCoversQueued;
+    private final AtomicInteger mCoversDone;
+    private final AtomicInteger mCoversExtracted;
+
+    public ScanProgress() {
+        mPhase = Phase.IDLE;
+        mStartNs = 0;
+        mEndNs = 0;
+        mDirsWalked = new AtomicInteger();
+        mFilesDiscovered = new AtomicInteger();
+        mFilesFiltered = new AtomicInteger();
+        mFilesUnchanged = new AtomicInteger();
+        mFilesQueued = new AtomicInteger();
+        mFilesParsed = new AtomicInteger();
+        mBytesParsed = new AtomicLong();
+        mBooksAssembled = new AtomicInteger();
+        mCoversQueued = new AtomicInteger(-1);
+        mCoversDone = new AtomicInteger();
+        mCoversExtracted = new AtomicInteger();
+    }
+
+    void begin() {
+        mDirsWalked.set(0);
+        mFilesDiscovered.set(0);
+        mFilesFiltered.set(0);
+        mFilesUnchanged.set(0);
+        mFilesQueued.set(0);
+        mFilesParsed.set(0);
+        mBytesParsed.set(0);
+        mBooksAssembled.set(0);
+        mCoversQueued.set(-1);
+        mCoversDone.set(0);
+        mCoversExtracted.set(0);
+        mEndNs = 0;
+        mStartNs = System.nanoTime();
+        mPhase = Phase.WALKING;
+    }
+
+    void setPhase(Phase phase) {
+        mPhase = phase;
+    }
+
+    void end() {
+        mEndNs = System.nanoTime();
+        mPhase = Phase.DONE;
+    }
+
+    void dirWalked() {
+        mDirsWalked.incrementAndGet();
+    }
+
+    void fileDiscovered() {
+        mFilesDiscovered.incrementAndGet();
+    }
+
+    void fileFiltered() {
+        mFilesFiltered.incrementAndGet();
+    }
+
+    // audio files that are the same as last scan and aren't read again
+    void fileUnchanged() {
+        mFilesUnchanged.incrementAndGet();
+    }
+
+    void fileQueued() {
+        mFilesQueued.incrementAndGet();
+    }
+
+    // every queued file is parsed exactly once, whether or not its tags could be used
+    void fileParsed() {
+        mFilesParsed.incrementAndGet();
+    }
+
+    void bytesParsed(long bytes) {
+        if (bytes > 0) {
+            mBytesParsed.addAndGet(bytes);
+        }
+    }
+
+    void bookAssembled() {
+        mBooksAssembled.incrementAndGet();
+    }
+
+    void coversQueued(int count) {
+        mCoversQueued.set(count);
+    }
+
+    void coverDone(boolean extracted) {
+        mCoversDone.incrementAndGet();
+        if (extracted) {
+            mCoversExtracted.incrementAndGet();
+        }
+    }
+
+    public Phase getPhase() {
+        return mPhase;
+    }
+
+    public int getDirsWalked() {
+        return mDirsWalked.get();
+    }
+
+    public int getFilesDiscovered() {
+        return mFilesDiscovered.get();
+    }
+
+    public int getFilesFiltered() {
+        return mFilesFiltered.get();
+    }
+
+    public int getFilesUnchanged() {
+        return mFilesUnchanged.get();
+    }
+
+    public int getFilesQueued() {
+        return mFilesQueued.get();
+    }
+
+    public int getFilesParsed() {
+        return mFilesParsed.get();
+    }
+
+    public long getBytesParsed() {
+        return mBytesParsed.get();
+    }
+
+    public int getBooksAssembled() {
+        return mBooksAssembled.get();
+    }
+
+    public int getCoversExtracted() {
+        return mCoversExtracted.get();
+    }
+
+    public long getElapsedMs() {
+        long startNs = mStartNs;
+        if (startNs == 0) {
+            return 0;
+        }
+        long endNs = mEndNs;
+        return TimeUnit.NANOSECONDS.toMillis((endNs != 0 ? endNs : System.nanoTime()) - startNs);
+    }
+
+    public float getFilesPerSecond() {
+        long elapsedMs = getElapsedMs();
+        return elapsedMs > 0 ? mFilesParsed.get() * 1000f / elapsedMs : 0;
+    }
+
+    public float getBytesPerSecond() {
+        long elapsedMs = getElapsedMs();
+        return elapsedMs > 0 ? mBytesParsed.get() * 1000f / elapsedMs : 0;
+    }
+
+    // a file and a cover count as one unit of work each
+    private int getTotalWork() {
+        int coversQueued = mCoversQueued.get();
+        return mFilesQueued.get() + (coversQueued >= 0 ? coversQueued : mBooksAssembled.get());
+    }
+
+    private int getWorkDone() {
+        return mFilesParsed.get() + mCoversDone.get();
+    }
+
+    // work done so far out of max, for a determinate progress bar
+    public int getProgress(int max) {
+        if (mPhase == Phase.DONE) {
+            return max;
+        }
+        int total = getTotalWork();
+        return total > 0 ? (int) Math.min(max, (long) getWorkDone() * max / total) : 0;
+    }
+
+    // time left at the average rate so far, or -1 while there is nothing to go by
+    public long getEtaMs() {
+        if (mPhase == Phase.DONE) {
+            return 0;
+        }
+        int done = getWorkDone();
+        long elapsedMs = getElapsedMs();
+        if (done == 0 || elapsedMs == 0) {
+            return -1;
+        }
+        return Math.max(0, getTotalWork() - done) * elapsedMs / done;
+    }
+
+    @Override
+    public String toString() {
+        return mPhase + ": dirs=" + getDirsWalked() + ", files=" + getFilesDiscovered() + " (filtered=" + getFilesFiltered()
+                + ", unchanged=" + getFilesUnchanged() + ", parsed=" + getFilesParsed() + "/" + getFilesQueued() + ")"
+                + ", books=" + getBooksAssembled() + ", covers=" + getCoversExtracted()
+                + String.format(Locale.US, ", %.1f files/s, %.0f bytes/s, eta=%dms", getFilesPerSecond(), getBytesPerSecond(), getEtaMs());
+    }
+}
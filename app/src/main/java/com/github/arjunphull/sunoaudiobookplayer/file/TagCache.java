@@ -0,0 +1,218 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+import android.net.Uri;
+import android.provider.DocumentsContract;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Tags the native parser read from documents it has seen before, so adding
+ * the same files again (an overlapping root, a root that was removed and
+ * added back, a rebuilt database) doesn't open or parse them a second time.
+ * Layout (big endian):
+ *
+ *   header   magic, version, entry count
+ *   entries  key, size, last modified, author, album, title,
+ *            track number, length; least recently used first
+ *
+ * The key is the provider authority and document id rather than the uri,
+ * since a document uri also names the tree it was reached through and the
+ * same file under another root would never match.
+ *
+ * An entry only counts while the document's size and last modified time are
+ * what they were when it was parsed. The tags are kept as the parser read
+ * them, before any guessing from file names, with the length filled in if it
+ * had to be looked up. The cache holds at most MAX_ENTRIES documents and
+ * drops the least recently used beyond that.
+ */
+class TagCache {
+    private static final int MAGIC = 0x53415443; // "SATC"
+    // version 1 was keyed by document uri
+    private static final int VERSION = 2;
+    private static final int MAX_ENTRIES = 20000;
+    // keeps every string well inside what writeUTF can store
+    private static final int MAX_STRING_LENGTH = 4096;
+
+    private static class Entry {
+        final long mSize;
+        final long mLastModified;
+        final String mAuthor;
+        final String mTitle;
+        final String mChapter;
+        final int mTrackNum;
+        final int mLength;
+
+        Entry(long size, long lastModified, String author, String title, String chapter, int trackNum, int length) {
+            mSize = size;
+            mLastModified = lastModified;
+            mAuthor = author;
+            mTitle = title;
+            mChapter = chapter;
+            mTrackNum = trackNum;
+            mLength = length;
+        }
+    }
+
+    private final File mFile;
+    private final File mTmpFile;
+    // in access order, loaded on first use
+    private LinkedHashMap<String, Entry> mEntries;
+    // size and last modified time of documents that were opened for parsing, until their tags arrive
+    private final Map<String, long[]> mExpected;
+    private boolean mDirty;
+
+    TagCache(File file) {
+        mFile = file;
+        mTmpFile = new File(file.getPath() + ".tmp");
+        mEntries = null;
+        mExpected = new HashMap<>();
+        mDirty = false;
+    }
+
+    // the cached tags of a document, or null if it was never parsed or has changed since.
+    // a last modified time of 0 means the provider doesn't know, so it never matches
+    synchronized TrackInfo get(Uri uri, long size, long lastModified) {
+        load();
+        Entry entry = mEntries.get(keyOf(uri));
+        if (entry == null || lastModified <= 0 || entry.mSize != size || entry.mLastModified != lastModified) {
+            return null;
+        }
+        TrackInfo trackInfo = new TrackInfo();
+        trackInfo.setUri(uri);
+        trackInfo.setAuthor(entry.mAuthor);
+        trackInfo.setTitle(entry.mTitle);
+        trackInfo.setChapter(entry.mChapter);
+        trackInfo.setTrackNum(entry.mTrackNum);
+        trackInfo.setLength(entry.mLength);
+        return trackInfo;
+    }
+
+    // called when a document is opened for the tag parser, so put() knows what its tags belong to
+    synchronized void expect(Uri uri, long size, long lastModified) {
+        if (lastModified > 0) {
+            mExpected.put(keyOf(uri), new long[]{size, lastModified});
+        }
+    }
+
+    // stores the tags of a document passed to expect(); anything else is ignored
+    synchronized void put(TrackInfo trackInfo) {
+        if (trackInfo.getUri() == null || trackInfo.getLength() < 0) {
+            return;
+        }
+        String key = keyOf(trackInfo.getUri());
+        long[] fingerprint = mExpected.remove(key);
+        if (fingerprint == null || isTooLong(trackInfo.getAuthor()) || isTooLong(trackInfo.getTitle()) || isTooLong(trackInfo.getChapter())) {
+            return;
+        }
+        load();
+        mEntries.put(key, new Entry(fingerprint[0], fingerprint[1],
+                valueOf(trackInfo.getAuthor()), valueOf(trackInfo.getTitle()), valueOf(trackInfo.getChapter()),
+                trackInfo.getTrackNum(), trackInfo.getLength()));
+        trimToSize();
+        mDirty = true;
+    }
+
+    // writes the cache out if anything was added since it was loaded
+    synchronized void save() {
+        mExpected.clear();
+        if (!mDirty) {
+            return;
+        }
+        mDirty = false;
+
+        // write to a temporary file and rename it over the old one so a crash never leaves a torn file behind
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mTmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mEntries.size());
+            for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.mSize);
+                out.writeLong(entry.mLastModified);
+                out.writeUTF(entry.mAuthor);
+                out.writeUTF(entry.mTitle);
+                out.writeUTF(entry.mChapter);
+                out.writeInt(entry.mTrackNum);
+                out.writeInt(entry.mLength);
+            }
+        } catch (IOException e) {
+            // the cache only saves work, so losing it is fine
+            mTmpFile.delete();
+            return;
+        }
+        if (!mTmpFile.renameTo(mFile)) {
+            mTmpFile.delete();
+        }
+    }
+
+    private void load() {
+        if (mEntries != null) {
+            return;
+        }
+        mEntries = new LinkedHashMap<>(16, 0.75f, true);
+        if (!mFile.exists()) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                String author = in.readUTF();
+                String title = in.readUTF();
+                String chapter = in.readUTF();
+                int trackNum = in.readInt();
+                int length = in.readInt();
+                mEntries.put(key, new Entry(size, lastModified, author, title, chapter, trackNum, length));
+            }
+        } catch (IOException e) {
+            // keep whatever was read before the damage
+        }
+        trimToSize();
+    }
+
+    private void trimToSize() {
+        while (mEntries.size() > MAX_ENTRIES) {
+            String eldest = mEntries.keySet().iterator().next();
+            mEntries.remove(eldest);
+        }
+    }
+
+    // the same document has the same key under every tree it is reached through
+    private static String keyOf(Uri uri) {
+        try {
+            String documentId = DocumentsContract.getDocumentId(uri);
+            if (documentId != null) {
+                return uri.getAuthority() + '/' + documentId;
+            }
+        } catch (IllegalArgumentException e) {
+            // not a document uri
+        }
+        return uri.toString();
+    }
+
+    private static boolean isTooLong(String s) {
+        return s != null && s.length() > MAX_STRING_LENGTH;
+    }
+
+    // a missing tag and an empty one are treated the same by the tag parser
+    private static String valueOf(String s) {
+        return s == null ? "" : s;
+    }
+}
@@ -4,11 +4,10 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.FileObserver;
 import android.os.ParcelFileDescriptor;
 import android.util.SparseArray;
 
-import androidx.documentfile.provider.DocumentFile;
-
 import com.github.arjunphull.sunoaudiobookplayer.R;
 import com.github.arjunphull.sunoaudiobookplayer.util.CollectionUtil;
 import com.github.arjunphull.sunoaudiobookplayer.util.MutableBoolean;
@@ -22,11 +21,22 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringJoiner;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -40,39 +50,89 @@ public class TagParser {
         System.loadLibrary("sunotagparser");
     }
 
+    private final int FIFO_RECHECK_MS = 1000;
+    private static final int TAG_RECORD_HEADER_SIZE = 24;
+    private static volatile Boolean sBatchApiAvailable = null;
+    // queued by release() after the last batch
+    private static final List<Triplet<ParcelFileDescriptor, Uri, Uri>> END_OF_FILES = new ArrayList<>();
+
     private final String mFinished;
 
     private Thread mTakeTagInfoThread;
     private Thread mGetTagInfoThread;
-    private List<Triplet<ParcelFileDescriptor, Uri, DocumentFile>> mFileBuf;
+    // one batch can wait here while the previous one is being parsed
+    private final BlockingQueue<List<Triplet<ParcelFileDescriptor, Uri, Uri>>> mBatches;
     private final File mFifo;
     private final File mDataDir;
+    private final Database mDatabase;
     private final Context mContext;
     private final Pattern mTrackNumPattern;
-
-    TagParser(Context context, File fifo) {
+    private final boolean mUseFifo;
+    private final DurationResolver mDurationResolver;
+    private final TagSourceRouter mTagSourceRouter;
+    private final TagCache mTagCache;
+    // tracks whose length is being looked up with MediaMetadataRetriever
+    private final List<CompletableFuture<Void>> mPendingTracks;
+    private volatile BookCompletionTracker mCompletionTracker;
+    // counted into even when nobody is watching, which is cheaper than checking
+    private volatile ScanProgress mProgress;
+
+    // useFifo selects the original text protocol over a named pipe, otherwise the batch api is used if the native library has it
+    TagParser(Context context, File fifo, boolean useFifo) {
         mContext = context;
         mFinished = "~";
         mTakeTagInfoThread = null;
         mGetTagInfoThread = null;
-        mFileBuf = new ArrayList<>();
+        mBatches = new ArrayBlockingQueue<>(1);
         mFifo = fifo;
-        mDataDir = Database.getInstance(context).getDataDir();
+        mDatabase = Database.getInstance(context);
+        mDataDir = mDatabase.getDataDir();
         mTrackNumPattern = Pattern.compile("\\d+");
+        mUseFifo = useFifo || !isBatchApiAvailable();
+        mDurationResolver = DurationResolver.getInstance(context);
+        mTagCache = mDatabase.getTagCache();
+        mTagSourceRouter = mDatabase.getTagSourceRouter();
+        mPendingTracks = Collections.synchronizedList(new ArrayList<>());
+        mCompletionTracker = null;
+        mProgress = new ScanProgress();
     }
 
     private static native byte[] getCoverArt(int fileDescriptor);
 
     public static Bitmap parseCoverArt(int fileDescriptor) {
-        byte[] bytes = getCoverArt(fileDescriptor);
-        if (bytes.length == 0) {
+        byte[] bytes = readCoverArt(fileDescriptor);
+        if (bytes == null) {
             return null;
         }
         return BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
     }
 
+    // the still encoded picture, or null if the file has none
+    static byte[] readCoverArt(int fileDescriptor) {
+        byte[] bytes = getCoverArt(fileDescriptor);
+        return bytes == null || bytes.length == 0 ? null : bytes;
+    }
+
     private native String getTagInfo(String args);
 
+    // fills results with one record per file descriptor; returns the number of bytes written,
+    // or minus the capacity needed if results is too small
+    static native int getTagInfoBatch(int[] fileDescriptors, ByteBuffer results);
+
+    // getTagInfoBatch is implemented by the taglib submodule; builds of the native library without it only
+    // speak the fifo protocol, and then the tag sources aren't used at all
+    static boolean isBatchApiAvailable() {
+        if (sBatchApiAvailable == null) {
+            try {
+                // nothing to read, so anything but an empty result means the batch api can't be trusted
+                sBatchApiAvailable = getTagInfoBatch(new int[0], ByteBuffer.allocateDirect(TAG_RECORD_HEADER_SIZE)) == 0;
+            } catch (UnsatisfiedLinkError e) {
+                sBatchApiAvailable = false;
+            }
+        }
+        return sBatchApiAvailable;
+    }
+
     private void readFifo(List<String> buffer, MutableBoolean finishedProducing) {
         synchronized (mFifo) {
             try (Reader fr = new FileReader(mFifo);
@@ -98,141 +158,314 @@ public class TagParser {
         }
     }
 
-    private void takeTagInfo(Map<String, Map<String, Audiobook>> hierarchicalData) throws InterruptedException, IllegalArgumentException {
-        AtomicBoolean error = new AtomicBoolean(false);
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-
-        // wait for fifo to be created
+    // the native side creates the fifo once it is running; this wakes up as soon as it appears
+    private void waitForFifo() throws InterruptedException {
+        CountDownLatch created = new CountDownLatch(1);
+        FileObserver observer = new FileObserver(mFifo.getParent(), FileObserver.CREATE) {
+            @Override
+            public void onEvent(int event, String path) {
+                if (mFifo.getName().equals(path)) {
+                    created.countDown();
+                }
+            }
+        };
+        observer.startWatching();
         try {
+            // it may have appeared before we started watching
             while (!mFifo.exists()) {
-                TimeUnit.MILLISECONDS.sleep(300);
+                created.await(FIFO_RECHECK_MS, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            observer.stopWatching();
+        }
+    }
+
+    // fills in whatever the tags didn't have and files the track under its book.
+    // returns false if the track or its book turned out to be unusable
+    private boolean addTrack(TrackInfo trackInfo, Map<String, Map<String, Audiobook>> hierarchicalData) {
+        if (trackInfo.getLength() < 0 && trackInfo.getUri() != null) {
+            trackInfo.setLength(mDurationResolver.resolveFromHeaders(trackInfo.getUri()));
+            if (trackInfo.getLength() < 0) {
+                // the slow fallback runs on the resolver's threads so the rest of the batch isn't held up
+                mPendingTracks.add(mDurationResolver.resolveAsync(trackInfo.getUri()).thenAccept(length -> {
+                    trackInfo.setLength(length);
+                    fileTrack(trackInfo, hierarchicalData);
+                }));
+                return true;
+            }
+        }
+        return fileTrack(trackInfo, hierarchicalData);
+    }
+
+    private boolean fileTrack(TrackInfo trackInfo, Map<String, Map<String, Audiobook>> hierarchicalData) {
+        // cached as read, so guesses are made afresh each time
+        mTagCache.put(trackInfo);
+        if (trackInfo.getChapter() == null || trackInfo.getChapter().isEmpty() ||
+            trackInfo.getAuthor() == null || trackInfo.getAuthor().isEmpty() ||
+            trackInfo.getTitle() == null || trackInfo.getTitle().isEmpty() ||
+            trackInfo.getTrackNum() <= 0) {
+            guessTrackInfo(trackInfo);
+        }
+
+        if (!trackInfo.validate(mContext)) {
+            fileDone(trackInfo.getDir(), null);
+            return false;
+        }
+        // other parsers may be adding tracks to the same map, and even the same book
+        Audiobook filedUnder;
+        boolean valid;
+        synchronized (hierarchicalData) {
+            Map<String, Audiobook> bookMap = hierarchicalData.get(trackInfo.getAuthor());
+            if (bookMap == null) {
+                bookMap = new TreeMap<>();
+                hierarchicalData.put(trackInfo.getAuthor(), bookMap);
+            }
+            Audiobook fileData = bookMap.get(trackInfo.getTitle());
+            if (fileData == null) {
+                fileData = new Audiobook(trackInfo.getAuthor(), trackInfo.getTitle());
+                bookMap.put(fileData.getTitle(), fileData);
+                mProgress.bookAssembled();
+                // the cover can be looked for while the rest of the scan is still running
+                mDatabase.prefetchCoverArt(fileData, trackInfo);
+            }
+            fileData.addTrack(trackInfo);
+            valid = fileData.isValid();
+            filedUnder = fileData;
+        }
+        fileDone(trackInfo.getDir(), valid ? filedUnder : null);
+        return valid;
+    }
+
+    private void fileDone(Uri dir, Audiobook audiobook) {
+        mProgress.fileParsed();
+        if (mCompletionTracker != null && dir != null) {
+            mCompletionTracker.fileDone(dir, audiobook);
+        }
+    }
+
+    // told about every file this parser is done with, so books can be published as soon as they are complete
+    void setCompletionTracker(BookCompletionTracker completionTracker) {
+        mCompletionTracker = completionTracker;
+    }
+
+    void setProgress(ScanProgress progress) {
+        mProgress = progress;
+    }
+
+    // tracks whose tags came from the cache rather than the native parser
+    void addCachedTracks(Collection<TrackInfo> trackInfos, Map<String, Map<String, Audiobook>> hierarchicalData) {
+        for (TrackInfo trackInfo : trackInfos) {
+            addTrack(trackInfo, hierarchicalData);
+        }
+    }
+
+    // each file goes to the sources its type is routed to, in order, until one can read it.
+    // files that are read are added and closed here; the ones no source could read are returned
+    private List<Triplet<ParcelFileDescriptor, Uri, Uri>> readWithTagSources(List<Triplet<ParcelFileDescriptor, Uri, Uri>> batch, Map<String, Map<String, Audiobook>> hierarchicalData) {
+        List<List<TagSource>> routes = new ArrayList<>(batch.size());
+        List<Integer> pending = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            routes.add(mTagSourceRouter.getSources(TagSourceRouter.mimeTypeOf(batch.get(i).first)));
+            pending.add(i);
+        }
+
+        List<Triplet<ParcelFileDescriptor, Uri, Uri>> remaining = new ArrayList<>();
+        for (int attempt = 0; !pending.isEmpty(); attempt++) {
+            // files on their nth attempt are grouped by source, so batch capable sources still get batches
+            Map<TagSource, List<Integer>> groups = new LinkedHashMap<>();
+            for (int i : pending) {
+                List<TagSource> route = routes.get(i);
+                if (attempt >= route.size()) {
+                    remaining.add(batch.get(i));
+                    continue;
+                }
+                List<Integer> group = groups.get(route.get(attempt));
+                if (group == null) {
+                    group = new ArrayList<>();
+                    groups.put(route.get(attempt), group);
+                }
+                group.add(i);
+            }
+
+            pending = new ArrayList<>();
+            for (Map.Entry<TagSource, List<Integer>> group : groups.entrySet()) {
+                List<ParcelFileDescriptor> pfds = new ArrayList<>(group.getValue().size());
+                for (int i : group.getValue()) {
+                    pfds.add(batch.get(i).first);
+                }
+                TrackInfo[] trackInfos = group.getKey().read(pfds);
+                for (int j = 0; j < trackInfos.length; j++) {
+                    int i = group.getValue().get(j);
+                    if (trackInfos[j] == null) {
+                        pending.add(i);
+                        continue;
+                    }
+                    trackInfos[j].setUri(batch.get(i).second);
+                    trackInfos[j].setDir(batch.get(i).third);
+                    addTrack(trackInfos[j], hierarchicalData);
+                    mProgress.bytesParsed(batch.get(i).first.getStatSize());
+                    try {
+                        batch.get(i).first.close();
+                    } catch (IOException e) {
+                        // do nothing
+                    }
+                }
+            }
+        }
+        return remaining;
+    }
+
+    private void takeTagInfoFromTagSources(Map<String, Map<String, Audiobook>> hierarchicalData) throws InterruptedException {
+        while (true) {
+            List<Triplet<ParcelFileDescriptor, Uri, Uri>> batch = mBatches.take();
+            if (batch == END_OF_FILES) {
+                break;
+            }
+
+            // close files nothing could read
+            for (Triplet<ParcelFileDescriptor, Uri, Uri> file : readWithTagSources(batch, hierarchicalData)) {
+                fileDone(file.third, null);
+                mProgress.bytesParsed(file.first.getStatSize());
+                try {
+                    file.first.close();
+                } catch (IOException e) {
+                    continue;
+                }
             }
-        } catch (InterruptedException e) {
-            throw e;
         }
+    }
+
+    // one record per file descriptor, in the order they were passed in:
+    //   status, track number, length (ms), then the byte lengths of artist, album and title (-1 if missing),
+    //   followed by the utf-8 bytes of those three strings.
+    // a file the native side couldn't read has a non-zero status and yields null
+    static List<TrackInfo> readTagRecords(ByteBuffer records, int count) {
+        List<TrackInfo> trackInfos = new ArrayList<>(count);
+        byte[] scratch = new byte[256];
+        for (int i = 0; i < count && records.remaining() >= TAG_RECORD_HEADER_SIZE; i++) {
+            int status = records.getInt();
+            int trackNum = records.getInt();
+            int length = records.getInt();
+            int[] stringLengths = {records.getInt(), records.getInt(), records.getInt()};
+            String[] strings = new String[3];
+            for (int j = 0; j < strings.length; j++) {
+                int stringLength = stringLengths[j];
+                if (stringLength < 0) {
+                    continue;
+                }
+                if (stringLength > records.remaining()) {
+                    return trackInfos;
+                }
+                if (stringLength > scratch.length) {
+                    scratch = new byte[stringLength];
+                }
+                records.get(scratch, 0, stringLength);
+                strings[j] = new String(scratch, 0, stringLength, StandardCharsets.UTF_8);
+            }
+
+            if (status != 0) {
+                trackInfos.add(null);
+                continue;
+            }
+            TrackInfo trackInfo = new TrackInfo();
+            trackInfo.setTrackNum(trackNum);
+            trackInfo.setLength(length);
+            trackInfo.setAuthor(strings[0]);
+            trackInfo.setTitle(strings[1]);
+            trackInfo.setChapter(strings[2]);
+            trackInfos.add(trackInfo);
+        }
+        return trackInfos;
+    }
+
+    private void takeTagInfoFromFifo(Map<String, Map<String, Audiobook>> hierarchicalData) throws InterruptedException, IllegalArgumentException {
+        AtomicBoolean error = new AtomicBoolean(false);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        TagRecordParser recordParser = new TagRecordParser();
+
+        waitForFifo();
 
         boolean done = false;
         while (!done) {
             // push file descriptors through the fifo
-            // lock with file buf until all files are handled
-            synchronized (mFileBuf) {
-                while (mFileBuf.isEmpty()) {
-                    mFileBuf.wait();
-                }
-                SparseArray<Triplet<ParcelFileDescriptor, Uri, DocumentFile>> fileMap = new SparseArray<>(mFileBuf.size());
-                boolean sentFileDescriptors = false;
-                synchronized (mFifo) {
-                    try (Writer fw = new FileWriter(mFifo);
-                         BufferedWriter bw = new BufferedWriter(fw)) {
-                        for (Triplet<ParcelFileDescriptor, Uri, DocumentFile> file : mFileBuf) {
-                            // detect done signal
-                            if (file == null) {
-                                done = true;
-                            } else {
-                                fileMap.put(file.first.getFd(), file);
-                            }
-                        }
+            List<Triplet<ParcelFileDescriptor, Uri, Uri>> batch = mBatches.take();
+            done = batch == END_OF_FILES;
+            SparseArray<Triplet<ParcelFileDescriptor, Uri, Uri>> fileMap = new SparseArray<>(batch.size());
+            Set<Integer> filedFds = new HashSet<>();
+            boolean sentFileDescriptors = false;
+            synchronized (mFifo) {
+                try (Writer fw = new FileWriter(mFifo);
+                     BufferedWriter bw = new BufferedWriter(fw)) {
+                    for (Triplet<ParcelFileDescriptor, Uri, Uri> file : batch) {
+                        fileMap.put(file.first.getFd(), file);
+                    }
 
-                        StringJoiner fdsj = new StringJoiner(",");
-                        for (int i = 0; i < fileMap.size(); i++) {
-                            fdsj.add(String.valueOf(fileMap.keyAt(i)));
-                        }
-                        String output = fdsj.toString();
-                        bw.write(done ? output + mFinished : output);
-                        sentFileDescriptors = fileMap.size() > 0;
-                    } catch (IOException e) {
-                        //TODO handle this
+                    StringJoiner fdsj = new StringJoiner(",");
+                    for (int i = 0; i < fileMap.size(); i++) {
+                        fdsj.add(String.valueOf(fileMap.keyAt(i)));
                     }
+                    String output = fdsj.toString();
+                    bw.write(done ? output + mFinished : output);
+                    sentFileDescriptors = fileMap.size() > 0;
+                } catch (IOException e) {
+                    //TODO handle this
                 }
+            }
 
-                if (sentFileDescriptors) {
-                    // start reading off the queue asynchronously
-                    List<String> buffer = new ArrayList<>();
-                    MutableBoolean finishedProducing = new MutableBoolean(false);
-                    executor.submit(() -> readFifo(buffer, finishedProducing));
-
-                    // organize tag info
-                    while (!finishedProducing.get() || !CollectionUtil.isCollectionEmpty_Synchronized(buffer)) {
-                        // wait for producer to supply tag info
-                        String[] rawInfoArr;
-                        synchronized (buffer) {
-                            while (!finishedProducing.get() && buffer.isEmpty()) {
-                                buffer.wait();
-                            }
-
-                            // take data off the buffer
-                            rawInfoArr = new String[buffer.size()];
-                            buffer.toArray(rawInfoArr);
-                            buffer.clear();
-                        }
+            if (sentFileDescriptors) {
+                // start reading off the queue asynchronously
+                List<String> buffer = new ArrayList<>();
+                MutableBoolean finishedProducing = new MutableBoolean(false);
+                executor.submit(() -> readFifo(buffer, finishedProducing));
 
-                        for (String rawInfo : rawInfoArr) {
-                            TrackInfo trackInfo = new TrackInfo();
-                            String preSplitInfo = rawInfo.replace("|*|", "\n");
-                            String[] strings = preSplitInfo.split("\n");
-                            for (String s : strings) {
-                                if (s.startsWith("FD=")) {
-                                    try {
-                                        int fd = Integer.parseInt(s.substring(3));
-                                        Triplet<ParcelFileDescriptor, Uri, DocumentFile> fileInfo = fileMap.get(fd);
-                                        trackInfo.setUri(fileInfo.second);
-                                        trackInfo.setDir(fileInfo.third);
-                                    } catch (NumberFormatException e) {
-                                        break;
-                                    }
-                                } else if (s.startsWith("ARTIST=")) {
-                                    trackInfo.setAuthor(s.substring(7));
-                                } else if (s.startsWith("ALBUM=")) {
-                                    trackInfo.setTitle(s.substring(6));
-                                } else if (s.startsWith("TITLE=")) {
-                                    trackInfo.setChapter(s.substring(6));
-                                } else if (s.startsWith("TRACK=")) {
-                                    trackInfo.setTrackNum(Integer.parseInt(s.substring(6)));
-                                } else if (s.startsWith("LENGTH=")) {
-                                    trackInfo.setLength(Integer.parseInt(s.substring(7)));
-                                }
-                            }
-
-                            if (trackInfo.getChapter() == null || trackInfo.getChapter().isEmpty() ||
-                                trackInfo.getAuthor() == null || trackInfo.getAuthor().isEmpty() ||
-                                trackInfo.getTitle() == null || trackInfo.getTitle().isEmpty() ||
-                                trackInfo.getTrackNum() <= 0) {
-                                guessTrackInfo(trackInfo);
-                            }
-
-                            Audiobook fileData = null;
-                            if (trackInfo.validate(mContext)) {
-                                Map<String, Audiobook> bookMap = hierarchicalData.get(trackInfo.getAuthor());
-                                if (bookMap == null) {
-                                    bookMap = new TreeMap<>();
-                                    hierarchicalData.put(trackInfo.getAuthor(), bookMap);
-                                }
-                                fileData = bookMap.get(trackInfo.getTitle());
-                                if (fileData == null) {
-                                    fileData = new Audiobook(trackInfo.getAuthor(), trackInfo.getTitle());
-                                    bookMap.put(fileData.getTitle(), fileData);
-                                }
-                                fileData.addTrack(trackInfo);
-                            }
-
-                            if (fileData == null || !fileData.isValid()) {
-                                break;
-                            }
+                // organize tag info
+                while (!finishedProducing.get() || !CollectionUtil.isCollectionEmpty_Synchronized(buffer)) {
+                    // wait for producer to supply tag info
+                    String[] rawInfoArr;
+                    synchronized (buffer) {
+                        while (!finishedProducing.get() && buffer.isEmpty()) {
+                            buffer.wait();
                         }
+
+                        // take data off the buffer
+                        rawInfoArr = new String[buffer.size()];
+                        buffer.toArray(rawInfoArr);
+                        buffer.clear();
                     }
-                }
 
-                // close files
-                for (int i = 0; i < fileMap.size(); i++) {
-                    try {
-                        fileMap.valueAt(i).first.close();
-                    } catch (IOException e) {
-                        continue;
+                    for (String rawInfo : rawInfoArr) {
+                        Triplet<ParcelFileDescriptor, Uri, Uri> fileInfo = recordParser.parse(rawInfo) ? fileMap.get(recordParser.mFd) : null;
+                        if (fileInfo == null) {
+                            continue;
+                        }
+                        filedFds.add(recordParser.mFd);
+                        TrackInfo trackInfo = new TrackInfo();
+                        trackInfo.setUri(fileInfo.second);
+                        trackInfo.setDir(fileInfo.third);
+                        trackInfo.setAuthor(recordParser.mArtist);
+                        trackInfo.setTitle(recordParser.mAlbum);
+                        trackInfo.setChapter(recordParser.mTitle);
+                        trackInfo.setTrackNum(recordParser.mTrackNum);
+                        trackInfo.setLength(recordParser.mLength);
+
+                        if (!addTrack(trackInfo, hierarchicalData)) {
+                            break;
+                        }
                     }
                 }
+            }
 
-                mFileBuf.clear();
-                mFileBuf.notify();
+            // close files
+            for (int i = 0; i < fileMap.size(); i++) {
+                if (!filedFds.contains(fileMap.keyAt(i))) {
+                    fileDone(fileMap.valueAt(i).third, null);
+                }
+                mProgress.bytesParsed(fileMap.valueAt(i).first.getStatSize());
+                try {
+                    fileMap.valueAt(i).first.close();
+                } catch (IOException e) {
+                    continue;
+                }
             }
         }
 
@@ -288,9 +521,9 @@ public class TagParser {
         trackInfo.setTitle(title);
     }
 
-    public void parseTagsAsync(List<Triplet<ParcelFileDescriptor, Uri, DocumentFile>> fileList, Map<String, Map<String, Audiobook>> hierarchicalData) throws InterruptedException, IllegalArgumentException {
+    public void parseTagsAsync(List<Triplet<ParcelFileDescriptor, Uri, Uri>> fileList, Map<String, Map<String, Audiobook>> hierarchicalData) throws InterruptedException, IllegalArgumentException {
         // start tag parser interface thread
-        if (mGetTagInfoThread == null) {
+        if (mUseFifo && mGetTagInfoThread == null) {
             mGetTagInfoThread = new Thread(() -> {
                 try {
                     getTagInfo(String.format("pipe=%s\n", mFifo.getAbsolutePath()));
@@ -303,10 +536,13 @@ public class TagParser {
 
         // start fifo thread
         if (mTakeTagInfoThread == null) {
-            mFileBuf.clear();
             mTakeTagInfoThread = new Thread(() -> {
                 try {
-                    takeTagInfo(hierarchicalData);
+                    if (mUseFifo) {
+                        takeTagInfoFromFifo(hierarchicalData);
+                    } else {
+                        takeTagInfoFromTagSources(hierarchicalData);
+                    }
                 } catch (InterruptedException | IllegalArgumentException e) {
                     // TODO handle
                 }
@@ -314,24 +550,23 @@ public class TagParser {
             mTakeTagInfoThread.start();
         }
 
-        synchronized (mFileBuf) {
-            while (!mFileBuf.isEmpty()) {
-                mFileBuf.wait();
-            }
-            mFileBuf.addAll(fileList);
-            mFileBuf.notifyAll();
-        }
+        // only blocks if a batch is already waiting behind the one being parsed
+        mBatches.put(new ArrayList<>(fileList));
 
         /*if (error.get()) {
             throw new IllegalArgumentException();
         }*/
     }
 
+    // false while a batch is already waiting behind the one being parsed, i.e. parseTagsAsync would block
+    public boolean canTakeBatch() {
+        return mBatches.isEmpty();
+    }
+
     public void release() throws InterruptedException {
         // queue stop signal
-        synchronized (mFileBuf) {
-            mFileBuf.add(null);
-            mFileBuf.notifyAll();
+        if (mTakeTagInfoThread != null) {
+            mBatches.put(END_OF_FILES);
         }
 
         if (mGetTagInfoThread != null) {
@@ -344,6 +579,16 @@ public class TagParser {
             mTakeTagInfoThread = null;
         }
 
-        mFifo.delete();
+        // the scan isn't done until every track has a length
+        CompletableFuture<?>[] pending;
+        synchronized (mPendingTracks) {
+            pending = mPendingTracks.toArray(new CompletableFuture<?>[0]);
+            mPendingTracks.clear();
+        }
+        CompletableFuture.allOf(pending).join();
+
+        if (mUseFifo) {
+            mFifo.delete();
+        }
     }
 }
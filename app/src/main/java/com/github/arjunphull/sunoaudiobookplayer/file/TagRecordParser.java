@@ -0,0 +1,96 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+/*
+ * Reads one record of the fifo protocol: KEY=value fields separated by "|*|",
+ * e.g. "FD=42|*|ARTIST=...|*|ALBUM=...|*|TITLE=...|*|TRACK=3|*|LENGTH=1234".
+ *
+ * The record is walked once by index. Keys are matched in place, numbers are
+ * parsed straight out of the record and the only strings created are the
+ * artist, album and title values themselves. A parser is reused for every
+ * record, so it is not thread safe.
+ */
+class TagRecordParser {
+    private static final String SEPARATOR = "|*|";
+
+    int mFd;
+    int mTrackNum;
+    int mLength;
+    String mArtist;
+    String mAlbum;
+    String mTitle;
+
+    // returns false if the record has no usable file descriptor
+    boolean parse(String record) {
+        mFd = -1;
+        mTrackNum = -1;
+        mLength = -1;
+        mArtist = null;
+        mAlbum = null;
+        mTitle = null;
+
+        int end = record.length();
+        int start = 0;
+        while (start < end) {
+            int fieldEnd = record.indexOf(SEPARATOR, start);
+            if (fieldEnd < 0) {
+                fieldEnd = end;
+            }
+            parseField(record, start, fieldEnd);
+            start = fieldEnd + SEPARATOR.length();
+        }
+        return mFd >= 0;
+    }
+
+    private void parseField(String record, int start, int end) {
+        int length = end - start;
+        if (length < 3) {
+            return;
+        }
+        switch (record.charAt(start)) {
+            case 'F':
+                if (hasKey(record, start, end, "FD=")) {
+                    mFd = parseInt(record, start + 3, end);
+                }
+                break;
+            case 'A':
+                if (hasKey(record, start, end, "ARTIST=")) {
+                    mArtist = record.substring(start + 7, end);
+                } else if (hasKey(record, start, end, "ALBUM=")) {
+                    mAlbum = record.substring(start + 6, end);
+                }
+                break;
+            case 'T':
+                if (hasKey(record, start, end, "TITLE=")) {
+                    mTitle = record.substring(start + 6, end);
+                } else if (hasKey(record, start, end, "TRACK=")) {
+                    mTrackNum = parseInt(record, start + 6, end);
+                }
+                break;
+            case 'L':
+                if (hasKey(record, start, end, "LENGTH=")) {
+                    mLength = parseInt(record, start + 7, end);
+                }
+                break;
+        }
+    }
+
+    private static boolean hasKey(String record, int start, int end, String key) {
+        return end - start >= key.length() && record.startsWith(key, start);
+    }
+
+    // non-negative decimal only; anything else is treated as missing
+    static int parseInt(CharSequence s, int start, int end) {
+        if (start >= end || end - start > 9) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
@@ -0,0 +1,27 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+import android.os.ParcelFileDescriptor;
+
+import java.util.List;
+
+/*
+ * One way of reading the tags and length of an audio file. TagSourceRouter
+ * decides which sources are tried for each format, and in what order.
+ * Sources are shared by all tag parsers, so they must be thread safe.
+ */
+interface TagSource {
+    // stored with the benchmark results, so it must not change
+    String getName();
+
+    // the tags of the file, or null if this source can't read it. the uri and directory are left for the caller to set
+    TrackInfo read(ParcelFileDescriptor pfd);
+
+    // one result per file, in order; sources with a cheaper way to handle many files at once override this
+    default TrackInfo[] read(List<ParcelFileDescriptor> pfds) {
+        TrackInfo[] trackInfos = new TrackInfo[pfds.size()];
+        for (int i = 0; i < trackInfos.length; i++) {
+            trackInfos[i] = read(pfds.get(i));
+        }
+        return trackInfos;
+    }
+}
@@ -0,0 +1,357 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Decides which TagSources read a file, in order, by its MIME type. The type
+ * is sniffed from the first bytes of the file, which is cheaper and more
+ * reliable than asking the document provider.
+ *
+ * By default the Java reader goes first for the formats it covers, then the
+ * native parser, then MediaMetadataRetriever. benchmark() times every source
+ * on a sample of the user's own files and moves the fastest one that agrees
+ * with the reference (the native parser, or the retriever without it) to the
+ * front for that format. The choices are saved as "mime=source,source" lines.
+ * The router is only used with the native batch api; a parser on the fifo
+ * protocol leaves every file to the native side.
+ *
+ * Benchmarks run one at a time on a background thread of their own, and only
+ * after a scan has routed a type that hasn't been benchmarked yet.
+ */
+class TagSourceRouter {
+    static final String MIME_MPEG = "audio/mpeg";
+    static final String MIME_MP4 = "audio/mp4";
+    static final String MIME_FLAC = "audio/flac";
+    static final String MIME_OGG = "audio/ogg";
+    static final String MIME_UNKNOWN = "application/octet-stream";
+    private static final int SAMPLE_FILES_PER_TYPE = 8;
+    // lengths found by different sources are allowed to differ by this much
+    private static final int LENGTH_TOLERANCE_MS = 1000;
+
+    private final File mFile;
+    private final File mTmpFile;
+    private final Map<String, TagSource> mSources;
+    private boolean mNativeAvailable;
+    // chosen routes by MIME type, loaded on first use along with the sources
+    private Map<String, List<TagSource>> mRoutes;
+    // types routed since the last benchmark that have no benchmarked route
+    private final Set<String> mNewTypes;
+    private final AtomicBoolean mBenchmarking;
+    private final ThreadPoolExecutor mBenchmarkExecutor;
+
+    TagSourceRouter(File file) {
+        mFile = file;
+        mTmpFile = new File(file.getPath() + ".tmp");
+        mSources = new LinkedHashMap<>();
+        mNativeAvailable = false;
+        mRoutes = null;
+        mNewTypes = ConcurrentHashMap.newKeySet();
+        mBenchmarking = new AtomicBoolean(false);
+        mBenchmarkExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        mBenchmarkExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private void addSource(TagSource source) {
+        mSources.put(source.getName(), source);
+    }
+
+    // the sources to try for a file of this type, best first
+    synchronized List<TagSource> getSources(String mimeType) {
+        load();
+        List<TagSource> route = mRoutes.get(mimeType);
+        if (route == null) {
+            mNewTypes.add(mimeType);
+            route = defaultRoute(mimeType);
+        }
+        return route;
+    }
+
+    private List<TagSource> defaultRoute(String mimeType) {
+        List<TagSource> route = new ArrayList<>();
+        if (isJavaReadable(mimeType)) {
+            route.add(mSources.get(JavaTagSource.NAME));
+        }
+        if (mNativeAvailable) {
+            route.add(mSources.get(NativeTagSource.NAME));
+        }
+        route.add(mSources.get(RetrieverTagSource.NAME));
+        return route;
+    }
+
+    private static boolean isJavaReadable(String mimeType) {
+        return MIME_MPEG.equals(mimeType) || MIME_MP4.equals(mimeType) || MIME_FLAC.equals(mimeType) || MIME_OGG.equals(mimeType);
+    }
+
+    static String mimeTypeOf(ParcelFileDescriptor pfd) {
+        try {
+            // positional reads only, see JavaTagReader
+            return mimeTypeOf(new FileInputStream(pfd.getFileDescriptor()).getChannel());
+        } catch (IOException | RuntimeException e) {
+            return MIME_UNKNOWN;
+        }
+    }
+
+    static String mimeTypeOf(FileChannel channel) throws IOException {
+        ByteBuffer head = DurationResolver.read(channel, 0, 12);
+        if (head.remaining() < 12) {
+            return MIME_UNKNOWN;
+        }
+        if (DurationResolver.startsWith(head, 0, "fLaC")) {
+            return MIME_FLAC;
+        }
+        if (DurationResolver.startsWith(head, 0, "OggS")) {
+            return MIME_OGG;
+        }
+        if (DurationResolver.startsWith(head, 4, "ftyp")) {
+            return MIME_MP4;
+        }
+        if (DurationResolver.startsWith(head, 0, "ID3")) {
+            return MIME_MPEG;
+        }
+        if (DurationResolver.startsWith(head, 0, "RIFF") && DurationResolver.startsWith(head, 8, "WAVE")) {
+            return "audio/wav";
+        }
+        if (DurationResolver.startsWith(head, 0, "MAC ")) {
+            return "audio/ape";
+        }
+        if (DurationResolver.startsWith(head, 0, "wvpk")) {
+            return "audio/wavpack";
+        }
+        if (head.getInt(0) == 0x3026B275) {
+            return "audio/x-ms-wma";
+        }
+        if (head.getInt(0) == 0x1A45DFA3) {
+            return "audio/x-matroska";
+        }
+        if ((head.getShort(0) & 0xFFE0) == 0xFFE0) {
+            // adts aac has layer bits of 0, mp3 never does
+            return ((head.get(1) >> 1) & 3) == 0 ? "audio/aac" : MIME_MPEG;
+        }
+        return MIME_UNKNOWN;
+    }
+
+    // types that benchmark() has already settled, whatever it chose
+    synchronized boolean isBenchmarked(String mimeType) {
+        load();
+        return mRoutes.containsKey(mimeType);
+    }
+
+    // queues a benchmark of the sample unless one is already running or no new type was routed since the last one
+    void benchmarkInBackground(Context context, List<Uri> sample) {
+        if (mNewTypes.isEmpty() || !mBenchmarking.compareAndSet(false, true)) {
+            return;
+        }
+        mNewTypes.clear();
+        mBenchmarkExecutor.execute(() -> {
+            try {
+                benchmark(context, sample);
+            } finally {
+                mBenchmarking.set(false);
+            }
+        });
+    }
+
+    // times every source on the sample, by type, for the types that haven't been benchmarked yet
+    void benchmark(Context context, List<Uri> sample) {
+        List<TagSource> sources;
+        TagSource reference;
+        synchronized (this) {
+            load();
+            sources = new ArrayList<>(mSources.values());
+            reference = mSources.get(mNativeAvailable ? NativeTagSource.NAME : RetrieverTagSource.NAME);
+        }
+
+        Map<String, List<Uri>> byType = new HashMap<>();
+        for (Uri uri : sample) {
+            try (ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, "r")) {
+                String mimeType = pfd == null ? MIME_UNKNOWN : mimeTypeOf(pfd);
+                if (isBenchmarked(mimeType)) {
+                    continue;
+                }
+                List<Uri> uris = byType.get(mimeType);
+                if (uris == null) {
+                    uris = new ArrayList<>();
+                    byType.put(mimeType, uris);
+                }
+                if (uris.size() < SAMPLE_FILES_PER_TYPE) {
+                    uris.add(uri);
+                }
+            } catch (IOException | RuntimeException e) {
+                // a file that can't be opened or sniffed is left out of the sample
+            }
+        }
+        if (byType.isEmpty()) {
+            return;
+        }
+
+        for (Map.Entry<String, List<Uri>> entry : byType.entrySet()) {
+            List<Uri> uris = entry.getValue();
+            TrackInfo[] expected = readAll(context, reference, uris, null);
+            if (expected == null) {
+                continue;
+            }
+
+            TagSource fastest = null;
+            long fastestNs = Long.MAX_VALUE;
+            for (TagSource source : sources) {
+                long[] elapsedNs = new long[1];
+                TrackInfo[] actual = readAll(context, source, uris, elapsedNs);
+                if (actual != null && agree(expected, actual) && elapsedNs[0] < fastestNs) {
+                    fastest = source;
+                    fastestNs = elapsedNs[0];
+                }
+            }
+
+            // the rest keep their default order behind the winner, so they are still tried if it fails on a file
+            synchronized (this) {
+                List<TagSource> route = defaultRoute(entry.getKey());
+                if (fastest != null) {
+                    route.remove(fastest);
+                    route.add(0, fastest);
+                }
+                mRoutes.put(entry.getKey(), route);
+            }
+        }
+        save();
+    }
+
+    // reads every file with the source, timing only the reads. returns null if a file couldn't be opened
+    private static TrackInfo[] readAll(Context context, TagSource source, List<Uri> uris, long[] elapsedNs) {
+        List<ParcelFileDescriptor> pfds = new ArrayList<>(uris.size());
+        try {
+            for (Uri uri : uris) {
+                ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+                if (pfd == null) {
+                    return null;
+                }
+                pfds.add(pfd);
+            }
+            long start = System.nanoTime();
+            TrackInfo[] trackInfos = source.read(pfds);
+            if (elapsedNs != null) {
+                elapsedNs[0] = System.nanoTime() - start;
+            }
+            return trackInfos;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        } finally {
+            for (ParcelFileDescriptor pfd : pfds) {
+                try {
+                    pfd.close();
+                } catch (IOException e) {
+                    // do nothing
+                }
+            }
+        }
+    }
+
+    // a source is only correct if it reads every file the reference can, the same way
+    private static boolean agree(TrackInfo[] expected, TrackInfo[] actual) {
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i] == null) {
+                continue;
+            }
+            if (actual[i] == null
+                    || !sameTag(expected[i].getAuthor(), actual[i].getAuthor())
+                    || !sameTag(expected[i].getTitle(), actual[i].getTitle())
+                    || !sameTag(expected[i].getChapter(), actual[i].getChapter())
+                    || expected[i].getTrackNum() != actual[i].getTrackNum()
+                    || Math.abs(expected[i].getLength() - actual[i].getLength()) > LENGTH_TOLERANCE_MS) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // missing and empty tags are the same to the tag parser
+    private static boolean sameTag(String a, String b) {
+        return Objects.equals(a == null || a.isEmpty() ? null : a, b == null || b.isEmpty() ? null : b);
+    }
+
+    private void load() {
+        if (mRoutes != null) {
+            return;
+        }
+        // checking for the batch api loads the native library, which isn't needed until the first scan
+        mNativeAvailable = TagParser.isBatchApiAvailable();
+        addSource(new JavaTagSource());
+        if (mNativeAvailable) {
+            addSource(new NativeTagSource());
+        }
+        addSource(new RetrieverTagSource());
+        mRoutes = new ConcurrentHashMap<>();
+        if (!mFile.exists()) {
+            return;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(mFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int equals = line.indexOf('=');
+                if (equals <= 0) {
+                    continue;
+                }
+                List<TagSource> route = new ArrayList<>();
+                for (String name : line.substring(equals + 1).split(",")) {
+                    // a source that is no longer available, e.g. native after a library downgrade, is dropped
+                    TagSource source = mSources.get(name);
+                    if (source != null) {
+                        route.add(source);
+                    }
+                }
+                if (!route.isEmpty()) {
+                    mRoutes.put(line.substring(0, equals), route);
+                }
+            }
+        } catch (IOException e) {
+            // the defaults are always safe
+            mRoutes.clear();
+        }
+    }
+
+    private synchronized void save() {
+        // write to a temporary file and rename it over the old one so a crash never leaves a torn file behind
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(mTmpFile))) {
+            for (Map.Entry<String, List<TagSource>> entry : mRoutes.entrySet()) {
+                StringBuilder line = new StringBuilder(entry.getKey()).append('=');
+                for (int i = 0; i < entry.getValue().size(); i++) {
+                    line.append(i == 0 ? "" : ",").append(entry.getValue().get(i).getName());
+                }
+                writer.write(line.toString());
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            mTmpFile.delete();
+            mFile.delete();
+            return;
+        }
+        if (!mTmpFile.renameTo(mFile)) {
+            mTmpFile.delete();
+            mFile.delete();
+        }
+    }
+}
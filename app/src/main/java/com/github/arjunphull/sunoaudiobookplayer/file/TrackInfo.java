@@ -1,13 +1,8 @@
 package com.github.arjunphull.sunoaudiobookplayer.file;
 
 import android.content.Context;
-import android.media.MediaPlayer;
 import android.net.Uri;
 
-import androidx.documentfile.provider.DocumentFile;
-
-import java.util.StringJoiner;
-
 public class TrackInfo {
     private int mNum;
     private int mLength;
@@ -15,13 +10,24 @@ public class TrackInfo {
     private String mTitle;
     private String mChapter;
     private Uri mUri;
-    private DocumentFile mDir;
+    // document uri of the directory the track is in
+    private Uri mDir;
 
     public TrackInfo() {
         mNum = -1;
         mLength = -1;
     }
 
+    TrackInfo(TrackInfo other) {
+        mNum = other.mNum;
+        mLength = other.mLength;
+        mAuthor = other.mAuthor;
+        mTitle = other.mTitle;
+        mChapter = other.mChapter;
+        mUri = other.mUri;
+        mDir = other.mDir;
+    }
+
     public int getTrackNum() {
         return mNum;
     }
@@ -70,12 +76,12 @@ public class TrackInfo {
         mUri = uri;
     }
 
-    public DocumentFile getDir() {
+    public Uri getDir() {
         return mDir;
     }
 
-    public void setDir(DocumentFile df) {
-        mDir = df;
+    public void setDir(Uri dir) {
+        mDir = dir;
     }
 
     public boolean validate(Context context) {
@@ -85,23 +91,9 @@ public class TrackInfo {
         ret &= mAuthor != null && !mAuthor.isEmpty();
         ret &= mUri != null;
         if (ret && mLength < 0) {
-            MediaPlayer player = MediaPlayer.create(context, mUri);
-            if (player == null) {
-                return false;
-            }
-            mLength = player.getDuration();
-            player.release();
+            mLength = DurationResolver.getInstance(context).resolve(mUri);
         }
         ret &= mLength >= 0;
         return ret;
     }
-
-    public String toJson() {
-        StringJoiner sj = new StringJoiner(",", "{", "}");
-        sj.add("\"num\": " + mNum);
-        sj.add("\"length\": " + mLength);
-        sj.add("\"chapter\": \"" + mChapter + "\"");
-        sj.add("\"uri\": \"" + mUri.toString() + "\"");
-        return sj.toString();
-    }
 }
\ No newline at end of file
@@ -6,6 +6,9 @@ import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.format.DateUtils;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -23,27 +26,46 @@ import androidx.recyclerview.widget.RecyclerView;
 import com.github.arjunphull.sunoaudiobookplayer.BuildConfig;
 import com.github.arjunphull.sunoaudiobookplayer.R;
 import com.github.arjunphull.sunoaudiobookplayer.datamodel.AudiobookDataModel;
+import com.github.arjunphull.sunoaudiobookplayer.file.Audiobook;
 import com.github.arjunphull.sunoaudiobookplayer.file.Database;
 import com.github.arjunphull.sunoaudiobookplayer.file.DirScanner;
+import com.github.arjunphull.sunoaudiobookplayer.file.OnAvailabilityChangeListener;
+import com.github.arjunphull.sunoaudiobookplayer.file.ScanProgress;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
-import java.util.concurrent.locks.StampedLock;
+import java.util.concurrent.CompletableFuture;
 
-public class LibraryActivity extends AppCompatActivity implements OnListItemClickListener {
+public class LibraryActivity extends AppCompatActivity implements OnListItemClickListener, OnAvailabilityChangeListener {
     private final int STORAGE_REQUEST = 100;
     private final String[] STORAGE_PERMISSIONS = {
             Manifest.permission.READ_EXTERNAL_STORAGE
     };
 
+    private final int SCAN_PROGRESS_INTERVAL_MS = 250;
+    private final int SCAN_PROGRESS_MAX = 1000;
+
     private FloatingActionButton mAddBooksBtn;
     private ProgressBar mBusyIndicator;
+    private ProgressBar mScanProgressBar;
+    private Handler mUiHandler;
+    // the scan being shown, or null
+    private ScanProgress mScanProgress;
+    private final Runnable mScanProgressTask = new Runnable() {
+        @Override
+        public void run() {
+            if (mScanProgress != null) {
+                showScanProgress(mScanProgress);
+                mUiHandler.postDelayed(this, SCAN_PROGRESS_INTERVAL_MS);
+            }
+        }
+    };
     private RecyclerView mRecyclerView;
     private List<AudiobookDataModel> mAudiobooks;
-    private StampedLock mUiLock;
 
     private void requestExternalStorageAccess() {
         if (!canAccessExternalSd()) {
@@ -71,9 +93,11 @@ public class LibraryActivity extends AppCompatActivity implements OnListItemClic
         setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
         setContentView(R.layout.activity_library);
 
-        mUiLock = new StampedLock();
         mAddBooksBtn = findViewById(R.id.btnAddBooks);
         mBusyIndicator = findViewById(R.id.pbBusyCircle);
+        mScanProgressBar = findViewById(R.id.pbScanProgress);
+        mScanProgressBar.setMax(SCAN_PROGRESS_MAX);
+        mUiHandler = new Handler(Looper.getMainLooper());
         mRecyclerView = findViewById(R.id.rvAudiobooks);
 
         requestExternalStorageAccess();
@@ -92,9 +116,27 @@ public class LibraryActivity extends AppCompatActivity implements OnListItemClic
             }
         }
 
-        mAudiobooks = Database.getInstance(this).loadAudiobooks();
+        // show an empty list until the library has been loaded in the background
+        mAudiobooks = new ArrayList<>();
         mRecyclerView.setAdapter(new RecyclerViewAdapter(this, this, mAudiobooks));
         mRecyclerView.setLayoutManager(new LinearLayoutManager(this));
+        Database.getInstanceAsync(this).thenAccept(database -> runOnUiThread(() -> {
+            if (isDestroyed()) {
+                return;
+            }
+            database.setOnAvailabilityChangeListener(this);
+            mAudiobooks = database.loadAudiobooks();
+            mRecyclerView.setAdapter(new RecyclerViewAdapter(this, this, mAudiobooks));
+            mRecyclerView.post(this::prioritizeVisibleAudiobooks);
+        }));
+        mRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                    prioritizeVisibleAudiobooks();
+                }
+            }
+        });
 
         mAddBooksBtn.setOnClickListener(view -> {
             // request read access to external storage.
@@ -112,28 +154,71 @@ public class LibraryActivity extends AppCompatActivity implements OnListItemClic
     }
 
     @Override
-    protected void onResume() {
-        super.onResume();
-        RecyclerView rvAudiobooks = findViewById(R.id.rvAudiobooks);
-        // onResume seems to get called spuriously so make sure a library update is not in progress
-        long stamp = mUiLock.tryWriteLock();
-        if (stamp == 0) {
+    protected void onDestroy() {
+        mScanProgress = null;
+        mUiHandler.removeCallbacks(mScanProgressTask);
+        CompletableFuture<Database> database = Database.getInstanceAsync(this);
+        if (database.isDone()) {
+            database.join().setOnAvailabilityChangeListener(null);
+        }
+        super.onDestroy();
+    }
+
+    // have the background validator check the books on screen first
+    private void prioritizeVisibleAudiobooks() {
+        LinearLayoutManager layoutManager = (LinearLayoutManager) mRecyclerView.getLayoutManager();
+        if (layoutManager == null) {
+            return;
+        }
+        List<AudiobookDataModel> audiobooks = mAudiobooks;
+        int first = Math.max(layoutManager.findFirstVisibleItemPosition(), 0);
+        int last = Math.min(layoutManager.findLastVisibleItemPosition(), audiobooks.size() - 1);
+        if (first > last) {
             return;
         }
+        Database database = Database.getInstance(this);
+        // prioritize bottom up so that the top of the screen is validated first
+        for (int i = last; i >= first; i--) {
+            AudiobookDataModel audiobook = audiobooks.get(i);
+            database.prioritizeValidation(audiobook.getAuthor(), audiobook.getTitle());
+        }
+    }
 
-        AudiobookDataModel audiobook = RecyclerViewAdapter.getSelectedAudiobook();
-        if (audiobook != null) {
-            int position = 0;
+    @Override
+    public void onAvailabilityChange(Audiobook audiobook) {
+        String author = audiobook.getAuthor();
+        String title = audiobook.getTitle();
+        Audiobook.Availability availability = audiobook.getAvailability();
+        runOnUiThread(() -> {
+            RecyclerView.Adapter<?> adapter = mRecyclerView.getAdapter();
             for (int i = 0; i < mAudiobooks.size(); i++) {
-                if (audiobook == mAudiobooks.get(i)) {
-                    position = i;
-                    break;
+                AudiobookDataModel dataModel = mAudiobooks.get(i);
+                if (!dataModel.getAuthor().equals(author) || !dataModel.getTitle().equals(title)) {
+                    continue;
                 }
+                if (availability == Audiobook.Availability.MISSING) {
+                    mAudiobooks.remove(i);
+                    adapter.notifyItemRemoved(i);
+                    adapter.notifyItemRangeChanged(i, mAudiobooks.size());
+                } else {
+                    dataModel.setAvailable(false);
+                    adapter.notifyItemChanged(i);
+                }
+                break;
             }
+        });
+    }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        RecyclerView rvAudiobooks = findViewById(R.id.rvAudiobooks);
+        // the list is only ever replaced on the UI thread, so it can't change under us here
+        AudiobookDataModel audiobook = RecyclerViewAdapter.getSelectedAudiobook();
+        int position = mAudiobooks.indexOf(audiobook);
+        if (position >= 0) {
             rvAudiobooks.getAdapter().notifyItemChanged(position);
         }
-        mUiLock.unlockWrite(stamp);
     }
 
     @Override
@@ -160,22 +245,21 @@ public class LibraryActivity extends AppCompatActivity implements OnListItemClic
 
     @Override
     public void onListItemClick() {
-        long stamp = mUiLock.tryWriteLock();
-        if (stamp == 0) {
-            return;
-        }
-        Intent intent = new Intent(this, PlayerActivity.class);
-        startActivity(intent);
-        mUiLock.unlock(stamp);
+        AudiobookDataModel audiobook = RecyclerViewAdapter.getSelectedAudiobook();
+        // the tracks are checked on the validator thread; the player is started once they have been
+        Database.getInstanceAsync(this)
+                .thenCompose(database -> database.validateAudiobook(audiobook.getAuthor(), audiobook.getTitle()))
+                .thenAcceptAsync(available -> {
+                    if (!available || isDestroyed()) {
+                        return;
+                    }
+                    Intent intent = new Intent(this, PlayerActivity.class);
+                    startActivity(intent);
+                }, ContextCompat.getMainExecutor(this));
     }
 
     @Override
     public void onListItemLongClick(View v, int position) {
-        long stamp = mUiLock.tryWriteLock();
-        if (stamp == 0) {
-            return;
-        }
-
         AudiobookDataModel audiobook = mAudiobooks.get(position);
 
         PopupMenu popup = new PopupMenu(this, v);
@@ -208,12 +292,13 @@ public class LibraryActivity extends AppCompatActivity implements OnListItemClic
                                     newTitle
                             );
                             if (updated) {
-                                audiobook.updateAuthorAndTitle(newAuthor, newTitle);
+                                audiobook.updateAuthorAndTitle(newAuthor, newTitle, database.getDataDir());
                             }
-                            // update the recyclerview on the UI thread
+                            // update the recyclerview on the UI thread; a scan may have reloaded the list meanwhile
                             runOnUiThread(() -> {
-                                if (updated) {
-                                    ((RecyclerView) findViewById(R.id.rvAudiobooks)).getAdapter().notifyItemChanged(position);
+                                int index = mAudiobooks.indexOf(audiobook);
+                                if (updated && index >= 0) {
+                                    ((RecyclerView) findViewById(R.id.rvAudiobooks)).getAdapter().notifyItemChanged(index);
                                 }
                                 editDetailsDialog.cancel();
                             });
@@ -231,16 +316,125 @@ public class LibraryActivity extends AppCompatActivity implements OnListItemClic
                 Database database = Database.getInstance(this);
                 database.deleteAudiobook(audiobook.getAuthor(), audiobook.getTitle());
                 RecyclerView rvAudiobooks = findViewById(R.id.rvAudiobooks);
-                mAudiobooks.remove(position);
-                rvAudiobooks.getAdapter().notifyItemRemoved(position);
-                rvAudiobooks.getAdapter().notifyItemRangeChanged(position, mAudiobooks.size());
+                int index = mAudiobooks.indexOf(audiobook);
+                if (index >= 0) {
+                    mAudiobooks.remove(index);
+                    rvAudiobooks.getAdapter().notifyItemRemoved(index);
+                    rvAudiobooks.getAdapter().notifyItemRangeChanged(index, mAudiobooks.size());
+                }
                 return true;
             } else {
                 return false;
             }
         });
         popup.show();
-        mUiLock.unlock(stamp);
+    }
+
+    // the counters are sampled on a timer, so the scan never waits on the UI
+    private void startScanProgress(ScanProgress progress) {
+        mScanProgress = progress;
+        mScanProgressBar.setProgress(0);
+        mScanProgressBar.setVisibility(View.VISIBLE);
+        mUiHandler.removeCallbacks(mScanProgressTask);
+        mUiHandler.post(mScanProgressTask);
+    }
+
+    private void showScanProgress(ScanProgress progress) {
+        mScanProgressBar.setProgress(progress.getProgress(SCAN_PROGRESS_MAX));
+        long etaMs = progress.getEtaMs();
+        String eta = etaMs < 0 ? getString(R.string.unknown) : DateUtils.formatElapsedTime(etaMs / 1000);
+        String status;
+        switch (progress.getPhase()) {
+            case WALKING:
+                status = progress.getFilesQueued() == 0
+                        ? getString(R.string.scan_walking, progress.getDirsWalked(), progress.getFilesDiscovered())
+                        : getString(R.string.scan_parsing, progress.getFilesParsed(), progress.getFilesQueued(), progress.getFilesPerSecond(), eta);
+                break;
+            case PARSING:
+                status = getString(R.string.scan_parsing, progress.getFilesParsed(), progress.getFilesQueued(), progress.getFilesPerSecond(), eta);
+                break;
+            case COVERS:
+                status = getString(R.string.scan_covers, progress.getBooksAssembled(), progress.getCoversExtracted(), eta);
+                break;
+            default:
+                status = null;
+                break;
+        }
+        Objects.requireNonNull(getSupportActionBar()).setSubtitle(status);
+    }
+
+    // progress is null if the scan failed, in which case there is nothing to sum up
+    private void finishScanProgress(ScanProgress progress) {
+        mScanProgress = null;
+        mUiHandler.removeCallbacks(mScanProgressTask);
+        mScanProgressBar.setVisibility(View.GONE);
+        Objects.requireNonNull(getSupportActionBar()).setSubtitle(null);
+        if (progress == null) {
+            return;
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.scan_complete)
+                .setMessage(getString(R.string.scan_summary,
+                        progress.getFilesDiscovered(), progress.getDirsWalked(), progress.getFilesQueued(),
+                        progress.getFilesUnchanged(), progress.getFilesFiltered(), progress.getBooksAssembled(),
+                        progress.getCoversExtracted(), DateUtils.formatElapsedTime(progress.getElapsedMs() / 1000),
+                        progress.getFilesPerSecond(), progress.getBytesPerSecond() / (1024 * 1024)))
+                .setPositiveButton(R.string.ok, null)
+                .show();
+    }
+
+    // the list is in library order: by author, then by title
+    private static int compareBooks(AudiobookDataModel a, AudiobookDataModel b) {
+        int byAuthor = a.getAuthor().compareTo(b.getAuthor());
+        return byAuthor != 0 ? byAuthor : a.getTitle().compareTo(b.getTitle());
+    }
+
+    // inserts the book in order, or replaces the entry for the same book
+    private void putInList(AudiobookDataModel audiobook) {
+        RecyclerView.Adapter<?> adapter = mRecyclerView.getAdapter();
+        int low = 0;
+        int high = mAudiobooks.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareBooks(mAudiobooks.get(mid), audiobook);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                mAudiobooks.set(mid, audiobook);
+                adapter.notifyItemChanged(mid);
+                return;
+            }
+        }
+        mAudiobooks.add(low, audiobook);
+        adapter.notifyItemInserted(low);
+    }
+
+    // walks both sorted lists once, so rows that didn't change keep their place and only the differences are animated
+    private void mergeIntoList(List<AudiobookDataModel> audiobooks) {
+        RecyclerView.Adapter<?> adapter = mRecyclerView.getAdapter();
+        int i = 0;
+        for (AudiobookDataModel audiobook : audiobooks) {
+            while (i < mAudiobooks.size() && compareBooks(mAudiobooks.get(i), audiobook) < 0) {
+                mAudiobooks.remove(i);
+                adapter.notifyItemRemoved(i);
+            }
+            if (i < mAudiobooks.size() && compareBooks(mAudiobooks.get(i), audiobook) == 0) {
+                // covers and lengths may have been filled in since the book was first listed
+                mAudiobooks.set(i, audiobook);
+                adapter.notifyItemChanged(i);
+            } else {
+                mAudiobooks.add(i, audiobook);
+                adapter.notifyItemInserted(i);
+            }
+            i++;
+        }
+        while (i < mAudiobooks.size()) {
+            mAudiobooks.remove(i);
+            adapter.notifyItemRemoved(i);
+        }
     }
 
     @Override
@@ -257,28 +451,47 @@ public class LibraryActivity extends AppCompatActivity implements OnListItemClic
                 setAddBooksBtnVisible(false);
 
                 // scan for audiobook asynchronously
+                // the database serializes its own writers, so the list stays usable while the scan runs
                 new Thread(() -> {
-                    long stamp = mUiLock.writeLock();
                     Uri dirUri = data.getData();
                     LibraryActivity activity = this;
                     activity.getContentResolver().takePersistableUriPermission(dirUri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
 
                     Database database = Database.getInstance(activity);
                     DirScanner scanner = new DirScanner(database.getDataDir());
+                    ScanProgress progress = scanner.getProgress();
+                    runOnUiThread(() -> startScanProgress(progress));
+                    // books show up as soon as the scanner is done with them; covers follow once the scan is over
+                    scanner.setOnBookCompleteListener(audiobook -> {
+                        if (!database.publishAudiobook(audiobook)) {
+                            return;
+                        }
+                        AudiobookDataModel dataModel = AudiobookDataModel.createAudiobook(audiobook.getAuthor(), audiobook.getTitle(), audiobook);
+                        runOnUiThread(() -> {
+                            if (!isDestroyed()) {
+                                putInList(dataModel);
+                            }
+                        });
+                    });
+                    boolean scanned = false;
                     try {
-                        database.mergeHierarchicalData(activity, scanner.scanDirectory(activity, dirUri));
+                        database.mergeHierarchicalData(activity, scanner.scanDirectory(activity, dirUri), progress);
+                        scanned = true;
                     } catch (Exception e) {
                         database.deleteDatabase();
                     }
+                    boolean showSummary = scanned;
 
-                    mAudiobooks = Database.getInstance(this).loadAudiobooks();
+                    List<AudiobookDataModel> audiobooks = database.loadAudiobooks();
 
-                    // populate the recyclerview on the UI thread
+                    // bring the list up to date on the UI thread
                     runOnUiThread(() -> {
-                        RecyclerView rvAudiobooks = findViewById(R.id.rvAudiobooks);
-                        rvAudiobooks.setAdapter(new RecyclerViewAdapter(activity, activity, mAudiobooks));
+                        if (isDestroyed()) {
+                            return;
+                        }
+                        mergeIntoList(audiobooks);
                         setAddBooksBtnVisible(true);
-                        mUiLock.unlockWrite(stamp);
+                        finishScanProgress(showSummary ? progress : null);
                     });
                 }).start();
                 break;
@@ -20,6 +20,7 @@ import android.widget.TextView;
 
 import androidx.activity.OnBackPressedCallback;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.content.ContextCompat;
 
 import com.github.arjunphull.sunoaudiobookplayer.R;
 import com.github.arjunphull.sunoaudiobookplayer.audio.OnPlaybackChangeListener;
@@ -27,7 +28,7 @@ import com.github.arjunphull.sunoaudiobookplayer.audio.PlayerService;
 import com.github.arjunphull.sunoaudiobookplayer.datamodel.AudiobookDataModel;
 import com.github.arjunphull.sunoaudiobookplayer.file.Database;
 
-import java.io.IOException;
+import java.util.Locale;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -61,17 +62,20 @@ public class PlayerActivity extends AppCompatActivity implements OnPlaybackChang
             mDataModel.setCurrentPosition(mPlayerService.getCurrentPosition());
             unbindService(mConnection);
             mPlayerService.dispose();
-            try {
-                Database.getInstance(this).updateLocation(mDataModel);
-            } catch (IOException e) {
-                // do nothing
-            }
+            saveLocation();
             while (!mExecutor.isTerminated()) {
                 // busy loop
             }
         }
     }
 
+    private void saveLocation() {
+        Database.getInstanceAsync(this).thenAcceptAsync(database -> {
+            database.updateLocation(mDataModel);
+            database.flushLocations();
+        }, ContextCompat.getMainExecutor(this));
+    }
+
     private void initExecutor() {
         mExecutor = Executors.newSingleThreadScheduledExecutor();
         Runnable waitTask = () -> mUiHandler.sendEmptyMessage(0);
@@ -103,10 +107,12 @@ public class PlayerActivity extends AppCompatActivity implements OnPlaybackChang
         mLengthTv = findViewById(R.id.tvLength);
         ((TextView) findViewById(R.id.tvTitle)).setText(mDataModel.getTitle());
         ((TextView) findViewById(R.id.tvAuthor)).setText(mDataModel.getAuthor());
+        // the service picks the saved speed up from the data model
+        mPlaybackSpeedButton.setText(String.format(Locale.US, "%.1fx", mDataModel.getPlaybackSpeed()));
 
-        if (mDataModel.getCoverArtPath() != null) {
+        if (mDataModel.getPlayerCoverPath() != null) {
             ImageView coverImageView = findViewById(R.id.playerCoverImageView);
-            coverImageView.setImageBitmap(BitmapFactory.decodeFile(mDataModel.getCoverArtPath()));
+            coverImageView.setImageBitmap(BitmapFactory.decodeFile(mDataModel.getPlayerCoverPath()));
         }
 
         // instantiate the handler for signalling UI updates
@@ -172,6 +178,12 @@ public class PlayerActivity extends AppCompatActivity implements OnPlaybackChang
         startForegroundService(intent);
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        Database.getInstanceAsync(this).thenAcceptAsync(Database::flushLocations, ContextCompat.getMainExecutor(this));
+    }
+
     @Override
     public void onDestroy() {
         shutdown();
@@ -230,11 +242,7 @@ public class PlayerActivity extends AppCompatActivity implements OnPlaybackChang
         mPlayerService.togglePlayPause();
         if (mPlayerService.isPlaying() == 0) {
             // save our current position
-            try {
-                Database.getInstance(this).updateLocation(mDataModel);
-            } catch (IOException e) {
-                // do nothing
-            }
+            saveLocation();
         }
     }
 
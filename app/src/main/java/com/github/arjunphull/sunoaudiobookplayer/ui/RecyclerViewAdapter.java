@@ -44,8 +44,9 @@ public class RecyclerViewAdapter extends RecyclerView.Adapter<RecyclerViewAdapte
         viewHolder.mTitleTextView.setText(audiobook.getTitle());
         viewHolder.mAuthorTextView.setText(audiobook.getAuthor());
         updateRemainingTime(viewHolder, audiobook);
-        if (audiobook.getCoverArtPath() != null) {
-            viewHolder.mCoverImageView.setImageBitmap(BitmapFactory.decodeFile(audiobook.getCoverArtPath()));
+        viewHolder.itemView.setAlpha(audiobook.isAvailable() ? 1.0f : 0.4f);
+        if (audiobook.getThumbnailPath() != null) {
+            viewHolder.mCoverImageView.setImageBitmap(BitmapFactory.decodeFile(audiobook.getThumbnailPath()));
         } else {
             viewHolder.mCoverImageView.setImageBitmap(BitmapFactory.decodeResource(mContext.getResources(), R.drawable.ic_default_cover));
         }
@@ -82,7 +83,11 @@ public class RecyclerViewAdapter extends RecyclerView.Adapter<RecyclerViewAdapte
 
         @Override
         public void onClick(View v) {
-            sSelectedAudiobook = mAudiobooks.get(getAdapterPosition());
+            AudiobookDataModel audiobook = mAudiobooks.get(getAdapterPosition());
+            if (!audiobook.isAvailable()) {
+                return;
+            }
+            sSelectedAudiobook = audiobook;
             mOnClickListener.onListItemClick();
         }
 
@@ -0,0 +1,52 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * Prints how long the pure Java reader takes per file for each format it
+ * covers, over the same synthetic files as JavaTagReaderTest. Only runs when
+ * asked for, with ./gradlew test -Dbenchmarks=true
+ */
+public class JavaTagReaderBenchmark {
+    private static final int BENCHMARK_ROUNDS = 2000;
+
+    @Before
+    public void onlyWhenAsked() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmarks"));
+    }
+
+    @Test
+    public void benchmark() throws IOException {
+        byte[][] files = {JavaTagReaderTest.mp3(3), JavaTagReaderTest.mp3WithId3v1(), JavaTagReaderTest.mp4(), JavaTagReaderTest.flac(), JavaTagReaderTest.opus()};
+        String[] names = {"id3v2", "id3v1", "mp4", "flac", "opus"};
+        for (int i = 0; i < files.length; i++) {
+            File file = File.createTempFile("tags", ".bin");
+            try {
+                try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                    out.write(files[i]);
+                }
+                try (RandomAccessFile in = new RandomAccessFile(file, "r"); FileChannel channel = in.getChannel()) {
+                    for (int j = 0; j < BENCHMARK_ROUNDS; j++) {
+                        JavaTagReader.read(channel);
+                    }
+                    long start = System.nanoTime();
+                    for (int j = 0; j < BENCHMARK_ROUNDS; j++) {
+                        JavaTagReader.read(channel);
+                    }
+                    long elapsedNs = System.nanoTime() - start;
+                    System.out.println(String.format(Locale.US, "%-6s %8.1f us/file", names[i], elapsedNs / 1000.0 / BENCHMARK_ROUNDS));
+                }
+            } finally {
+                file.delete();
+            }
+        }
+    }
+}
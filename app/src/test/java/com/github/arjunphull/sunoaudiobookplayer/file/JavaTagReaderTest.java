@@ -0,0 +1,248 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Reads synthetic files of every format the pure Java reader covers and
+ * checks the tags and lengths it finds.
+ */
+public class JavaTagReaderTest {
+    private static TrackInfo read(byte[] contents) throws IOException {
+        File file = File.createTempFile("tags", ".bin");
+        try {
+            try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                out.write(contents);
+            }
+            try (RandomAccessFile in = new RandomAccessFile(file, "r"); FileChannel channel = in.getChannel()) {
+                return JavaTagReader.read(channel);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void assertTags(TrackInfo trackInfo, String artist, String album, String title, int trackNum, int length) {
+        assertEquals(artist, trackInfo.getAuthor());
+        assertEquals(album, trackInfo.getTitle());
+        assertEquals(title, trackInfo.getChapter());
+        assertEquals(trackNum, trackInfo.getTrackNum());
+        assertEquals(length, trackInfo.getLength());
+    }
+
+    // an ID3v2.3 tag with the text frames, an unneeded picture frame in between, then cbr frames at 128 kbps
+    static byte[] mp3(int version) throws IOException {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        frames.write(id3Frame(version, "TPE1", (byte) 0, "Some Author".getBytes(StandardCharsets.ISO_8859_1)));
+        frames.write(id3Frame(version, "APIC", (byte) 0, new byte[5000]));
+        byte[] utf16 = "Some Book".getBytes(StandardCharsets.UTF_16);
+        frames.write(id3Frame(version, "TALB", (byte) 1, utf16));
+        frames.write(id3Frame(version, "TIT2", (byte) 3, "Chapter One".getBytes(StandardCharsets.UTF_8)));
+        frames.write(id3Frame(version, "TRCK", (byte) 0, "3/12".getBytes(StandardCharsets.ISO_8859_1)));
+        return id3Tag(version, frames.toByteArray());
+    }
+
+    private static byte[] id3Tag(int version, byte[] frames) {
+        ByteBuffer file = ByteBuffer.allocate(10 + frames.length + 100 + 16000);
+        file.put("ID3".getBytes(StandardCharsets.ISO_8859_1)).put((byte) version).put((byte) 0).put((byte) 0);
+        file.put(syncSafe(frames.length + 100));
+        file.put(frames);
+        file.position(file.position() + 100);
+        file.putInt(0xFFFB9000);
+        return file.array();
+    }
+
+    private static byte[] id3Frame(int version, String id, byte encoding, byte[] text) {
+        return id3Frame(version, id, 0, new byte[0], encoding, text);
+    }
+
+    // prefix is whatever the frame flags put between the header and the text
+    private static byte[] id3Frame(int version, String id, int flags, byte[] prefix, byte encoding, byte[] text) {
+        int size = prefix.length + 1 + text.length;
+        ByteBuffer frame = ByteBuffer.allocate(10 + size);
+        frame.put(id.getBytes(StandardCharsets.ISO_8859_1));
+        frame.put(version == 4 ? syncSafe(size) : ByteBuffer.allocate(4).putInt(size).array());
+        frame.put((byte) 0).put((byte) flags).put(prefix).put(encoding).put(text);
+        return frame.array();
+    }
+
+    private static byte[] syncSafe(int size) {
+        return new byte[]{(byte) ((size >> 21) & 0x7F), (byte) ((size >> 14) & 0x7F), (byte) ((size >> 7) & 0x7F), (byte) (size & 0x7F)};
+    }
+
+    // a bare mp3 frame with an ID3v1.1 tag at the end
+    static byte[] mp3WithId3v1() {
+        ByteBuffer file = ByteBuffer.allocate(16128);
+        file.putInt(0xFFFB9000);
+        file.position(16000);
+        file.put("TAG".getBytes(StandardCharsets.ISO_8859_1));
+        file.put(padded("Chapter Two", 30)).put(padded("Other Author", 30)).put(padded("Other Book", 30));
+        file.position(16000 + 125);
+        file.put((byte) 0).put((byte) 7);
+        return file.array();
+    }
+
+    private static byte[] padded(String s, int length) {
+        byte[] bytes = new byte[length];
+        byte[] text = s.getBytes(StandardCharsets.ISO_8859_1);
+        System.arraycopy(text, 0, bytes, 0, text.length);
+        return bytes;
+    }
+
+    private static byte[] box(String type, byte[]... children) throws IOException {
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        for (byte[] child : children) {
+            contents.write(child);
+        }
+        ByteBuffer box = ByteBuffer.allocate(8 + contents.size());
+        box.putInt(8 + contents.size()).put(type.getBytes(StandardCharsets.ISO_8859_1)).put(contents.toByteArray());
+        return box.array();
+    }
+
+    private static byte[] mp4Text(String type, String value) throws IOException {
+        byte[] text = value.getBytes(StandardCharsets.UTF_8);
+        return box(type, box("data", ByteBuffer.allocate(8 + text.length).putInt(1).putInt(0).put(text).array()));
+    }
+
+    static byte[] mp4() throws IOException {
+        byte[] mvhd = box("mvhd", ByteBuffer.allocate(20).putInt(0).putInt(0).putInt(0).putInt(1000).putInt(12345).array());
+        byte[] trkn = box("trkn", box("data", ByteBuffer.allocate(16).putInt(0).putInt(0).putShort((short) 0).putShort((short) 4).putShort((short) 9).array()));
+        byte[] ilst = box("ilst", mp4Text("\u00A9ART", "Mp4 Author"), box("covr", new byte[3000]), mp4Text("\u00A9alb", "Mp4 Book"),
+                mp4Text("\u00A9nam", "Mp4 Chapter"), trkn);
+        byte[] meta = box("meta", new byte[4], box("hdlr", new byte[25]), ilst);
+        return concat(box("ftyp", "M4A ".getBytes(StandardCharsets.ISO_8859_1)), box("moov", mvhd, box("udta", meta)));
+    }
+
+    private static byte[] vorbisComments(String... comments) {
+        int size = 4 + 6 + 4;
+        for (String comment : comments) {
+            size += 4 + comment.getBytes(StandardCharsets.UTF_8).length;
+        }
+        ByteBuffer block = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        block.putInt(6).put("vendor".getBytes(StandardCharsets.UTF_8)).putInt(comments.length);
+        for (String comment : comments) {
+            byte[] bytes = comment.getBytes(StandardCharsets.UTF_8);
+            block.putInt(bytes.length).put(bytes);
+        }
+        return block.array();
+    }
+
+    static byte[] flac() {
+        ByteBuffer streamInfo = ByteBuffer.allocate(4 + 34);
+        streamInfo.put((byte) 0).put(new byte[]{0, 0, 34});
+        streamInfo.position(4 + 10);
+        streamInfo.putLong((44100L << 44) | (1L << 41) | (15L << 36) | 441000L);
+        byte[] comments = vorbisComments("artist=Flac Author", "ALBUM=Flac Book", "TITLE=Flac Chapter", "TRACKNUMBER=11");
+        ByteBuffer commentBlock = ByteBuffer.allocate(4 + comments.length);
+        commentBlock.putInt(0x84000000 | comments.length).put(comments);
+        return concat("fLaC".getBytes(StandardCharsets.ISO_8859_1), streamInfo.array(), commentBlock.array());
+    }
+
+    private static byte[] oggPage(long granule, byte[]... packets) {
+        int segments = 0;
+        int bodyLength = 0;
+        for (byte[] packet : packets) {
+            segments += packet.length / 255 + 1;
+            bodyLength += packet.length;
+        }
+        ByteBuffer page = ByteBuffer.allocate(27 + segments + bodyLength).order(ByteOrder.LITTLE_ENDIAN);
+        page.put("OggS".getBytes(StandardCharsets.ISO_8859_1)).put((byte) 0).put((byte) 0).putLong(granule);
+        page.position(26);
+        page.put((byte) segments);
+        for (byte[] packet : packets) {
+            for (int i = 0; i < packet.length / 255; i++) {
+                page.put((byte) 255);
+            }
+            page.put((byte) (packet.length % 255));
+        }
+        for (byte[] packet : packets) {
+            page.put(packet);
+        }
+        return page.array();
+    }
+
+    static byte[] opus() {
+        ByteBuffer head = ByteBuffer.allocate(19).order(ByteOrder.LITTLE_ENDIAN);
+        head.put("OpusHead".getBytes(StandardCharsets.ISO_8859_1)).put((byte) 1).put((byte) 2).putShort((short) 312).putInt(48000);
+        // a long comment packet is split over several lacing values
+        byte[] tags = concat("OpusTags".getBytes(StandardCharsets.ISO_8859_1),
+                vorbisComments("ARTIST=Opus Author", "ALBUM=Opus Book", "TITLE=Opus Chapter", "TRACKNUMBER=2/5", "COMMENT=" + new String(new char[600]).replace('\0', 'x')));
+        return concat(oggPage(0, head.array()), oggPage(0, tags), oggPage(480312, new byte[10]));
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void readsId3v2() throws IOException {
+        assertTags(read(mp3(3)), "Some Author", "Some Book", "Chapter One", 3, 1000);
+        assertTags(read(mp3(4)), "Some Author", "Some Book", "Chapter One", 3, 1000);
+    }
+
+    @Test
+    public void readsId3v24FramesWithGroupIdsAndDataLengths() throws IOException {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        byte[] author = "Some Author".getBytes(StandardCharsets.ISO_8859_1);
+        frames.write(id3Frame(4, "TPE1", 0x01, syncSafe(1 + author.length), (byte) 0, author));
+        byte[] book = "Some Book".getBytes(StandardCharsets.ISO_8859_1);
+        frames.write(id3Frame(4, "TALB", 0x41, concat(new byte[]{7}, syncSafe(1 + book.length)), (byte) 0, book));
+        frames.write(id3Frame(4, "TIT2", 0x40, new byte[]{7}, (byte) 3, "Chapter One".getBytes(StandardCharsets.UTF_8)));
+        assertTags(read(id3Tag(4, frames.toByteArray())), "Some Author", "Some Book", "Chapter One", -1, 1000);
+    }
+
+    @Test
+    public void leavesUnsynchronisedId3v24FramesToTheNativeParser() throws IOException {
+        byte[] author = "Some Author".getBytes(StandardCharsets.ISO_8859_1);
+        assertNull(read(id3Tag(4, id3Frame(4, "TPE1", 0x03, syncSafe(1 + author.length), (byte) 0, author))));
+    }
+
+    @Test
+    public void readsId3v1() throws IOException {
+        assertTags(read(mp3WithId3v1()), "Other Author", "Other Book", "Chapter Two", 7, 1000);
+    }
+
+    @Test
+    public void readsMp4() throws IOException {
+        assertTags(read(mp4()), "Mp4 Author", "Mp4 Book", "Mp4 Chapter", 4, 12345);
+    }
+
+    @Test
+    public void readsFlac() throws IOException {
+        assertTags(read(flac()), "Flac Author", "Flac Book", "Flac Chapter", 11, 10000);
+    }
+
+    @Test
+    public void readsOpus() throws IOException {
+        assertTags(read(opus()), "Opus Author", "Opus Book", "Opus Chapter", 2, 10000);
+    }
+
+    @Test
+    public void leavesOtherFormatsToTheNativeParser() throws IOException {
+        assertNull(read("RIFF\0\0\0\0WAVEfmt ".getBytes(StandardCharsets.ISO_8859_1)));
+        assertNull(read(new byte[3]));
+    }
+
+    @Test
+    public void leavesUntaggedMp3ToTheNativeParser() throws IOException {
+        // the native parser may still find an APEv2 tag
+        ByteBuffer file = ByteBuffer.allocate(16000);
+        file.putInt(0xFFFB9000);
+        assertNull(read(file.array()));
+    }
+}
@@ -0,0 +1,301 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips the library index and checks that older versions still load and
+ * that damaged files are turned down instead of crashing the database.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class LibraryIndexTest {
+    private static final String COVER = "cover.jpg";
+    private static final String PNG_COVER = "cover.png";
+    private static final String THUMBNAIL = "cover_thumb.jpg";
+    private static final String PLAYER_COVER = "cover_player.jpg";
+
+    private File mDir;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("index").toFile();
+        mFile = new File(mDir, "library.idx");
+    }
+
+    @After
+    public void tearDown() {
+        new File(mDir, "library.idx.tmp").delete();
+        mFile.delete();
+        mDir.delete();
+    }
+
+    @Test
+    public void savedLibraryLoadsBack() throws IOException {
+        Map<String, Map<String, Audiobook>> library = new TreeMap<>();
+        Audiobook first = book("Author A", "Book One", 4, 3);
+        first.setCoverArtFile(new File(mDir, COVER));
+        first.setScaledCoverFiles(new File(mDir, THUMBNAIL), new File(mDir, PLAYER_COVER));
+        put(library, first);
+        Audiobook second = book("Author A", "Book Two", 9, 1);
+        second.setCoverArtFile(new File(mDir, PNG_COVER));
+        put(library, second);
+        put(library, book("Author B", "Book Three", 2, 2));
+
+        LibraryIndex index = new LibraryIndex(mFile);
+        index.save(library);
+        Map<String, Map<String, Audiobook>> loaded = load(index);
+
+        assertNotNull(loaded);
+        assertEquals(2, loaded.size());
+        assertEquals(2, loaded.get("Author A").size());
+        for (Map.Entry<String, Map<String, Audiobook>> authorEnt : library.entrySet()) {
+            for (Map.Entry<String, Audiobook> bookEnt : authorEnt.getValue().entrySet()) {
+                assertSameBook(bookEnt.getValue(), loaded.get(authorEnt.getKey()).get(bookEnt.getKey()));
+            }
+        }
+        Audiobook loadedFirst = loaded.get("Author A").get("Book One");
+        assertEquals(COVER, loadedFirst.getCoverArtFile().getName());
+        assertEquals(THUMBNAIL, loadedFirst.getThumbnailFile().getName());
+        assertEquals(PLAYER_COVER, loadedFirst.getPlayerCoverFile().getName());
+        assertEquals(PNG_COVER, loaded.get("Author A").get("Book Two").getCoverArtFile().getName());
+        assertNull(loaded.get("Author B").get("Book Three").getCoverArtFile());
+        assertFalse(loadedFirst.isDirty());
+        // positions live in the position table, not in the index
+        assertEquals(0, loadedFirst.getCurrentTrack());
+        assertEquals(0, loadedFirst.getCurrentPosition());
+    }
+
+    @Test
+    public void emptyLibraryLoadsBack() throws IOException {
+        LibraryIndex index = new LibraryIndex(mFile);
+        index.save(new TreeMap<>());
+        Map<String, Map<String, Audiobook>> loaded = load(index);
+        assertNotNull(loaded);
+        assertTrue(loaded.isEmpty());
+    }
+
+    @Test
+    public void version1KeepsPositionsAndHasNoIds() throws IOException {
+        Audiobook book = book("Author", "Title", 5, 3);
+        book.setCurrentTrack(2);
+        book.setCurrentPosition(61000);
+        writeOldIndex(1, book);
+
+        Map<String, Map<String, Audiobook>> loaded = load(new LibraryIndex(mFile));
+        assertNotNull(loaded);
+        Audiobook loadedBook = loaded.get("Author").get("Title");
+        assertEquals(-1, loadedBook.getId());
+        assertEquals(2, loadedBook.getCurrentTrack());
+        assertEquals(61000, loadedBook.getCurrentPosition());
+        assertEquals(3, loadedBook.getNumTracks());
+        assertEquals(COVER, loadedBook.getCoverArtFile().getName());
+    }
+
+    @Test
+    public void version2KeepsIds() throws IOException {
+        writeOldIndex(2, book("Author", "Title", 17, 2));
+
+        Map<String, Map<String, Audiobook>> loaded = load(new LibraryIndex(mFile));
+        assertNotNull(loaded);
+        Audiobook loadedBook = loaded.get("Author").get("Title");
+        assertEquals(17, loadedBook.getId());
+        assertEquals(2, loadedBook.getNumTracks());
+    }
+
+    @Test
+    public void damagedBodyIsRejected() throws IOException {
+        saveOneBook();
+        byte[] bytes = Files.readAllBytes(mFile.toPath());
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(mFile.toPath(), bytes);
+        assertNull(load(new LibraryIndex(mFile)));
+    }
+
+    @Test
+    public void damagedHeaderIsRejected() throws IOException {
+        saveOneBook();
+        byte[] bytes = Files.readAllBytes(mFile.toPath());
+        // the string count
+        ByteBuffer.wrap(bytes).putInt(16, -5);
+        Files.write(mFile.toPath(), bytes);
+        assertNull(load(new LibraryIndex(mFile)));
+    }
+
+    @Test
+    public void outOfRangeCountsAreRejectedWithoutAHeaderChecksum() throws IOException {
+        // versions before 3 don't checksum the header, so only the bounds checks stand in the way
+        int[] stringCounts = {-5, Integer.MAX_VALUE, 1 << 20};
+        for (int stringCount : stringCounts) {
+            writeOldIndex(2, book("Author", "Title", 1, 2));
+            byte[] bytes = Files.readAllBytes(mFile.toPath());
+            ByteBuffer.wrap(bytes).putInt(16, stringCount);
+            Files.write(mFile.toPath(), bytes);
+            assertNull(load(new LibraryIndex(mFile)));
+        }
+
+        writeOldIndex(2, book("Author", "Title", 1, 2));
+        byte[] bytes = Files.readAllBytes(mFile.toPath());
+        // the book count
+        ByteBuffer.wrap(bytes).putInt(8, 1000);
+        Files.write(mFile.toPath(), bytes);
+        assertNull(load(new LibraryIndex(mFile)));
+    }
+
+    @Test
+    public void truncatedIndexIsRejected() throws IOException {
+        saveOneBook();
+        byte[] bytes = Files.readAllBytes(mFile.toPath());
+        for (int length : new int[] {0, 20, bytes.length / 2, bytes.length - 1}) {
+            byte[] truncated = new byte[length];
+            System.arraycopy(bytes, 0, truncated, 0, length);
+            Files.write(mFile.toPath(), truncated);
+            assertNull(load(new LibraryIndex(mFile)));
+        }
+    }
+
+    @Test
+    public void unknownVersionIsRejected() throws IOException {
+        saveOneBook();
+        byte[] bytes = Files.readAllBytes(mFile.toPath());
+        ByteBuffer.wrap(bytes).putInt(4, 99);
+        Files.write(mFile.toPath(), bytes);
+        assertNull(load(new LibraryIndex(mFile)));
+    }
+
+    private void saveOneBook() throws IOException {
+        Map<String, Map<String, Audiobook>> library = new TreeMap<>();
+        put(library, book("Author", "Title", 1, 3));
+        new LibraryIndex(mFile).save(library);
+    }
+
+    private Map<String, Map<String, Audiobook>> load(LibraryIndex index) {
+        return index.load(mDir, COVER, PNG_COVER, THUMBNAIL, PLAYER_COVER);
+    }
+
+    private static Audiobook book(String author, String title, int id, int numTracks) {
+        Audiobook audiobook = new Audiobook(author, title);
+        audiobook.setId(id);
+        for (int i = 1; i <= numTracks; i++) {
+            TrackInfo trackInfo = new TrackInfo();
+            trackInfo.setTrackNum(i);
+            trackInfo.setLength(i * 60000);
+            trackInfo.setChapter("Chapter " + i);
+            trackInfo.setUri(Uri.parse("content://books/" + author + "/" + title + "/" + i + ".mp3"));
+            audiobook.addTrack(trackInfo);
+        }
+        return audiobook;
+    }
+
+    private static void put(Map<String, Map<String, Audiobook>> library, Audiobook audiobook) {
+        library.computeIfAbsent(audiobook.getAuthor(), k -> new TreeMap<>()).put(audiobook.getTitle(), audiobook);
+    }
+
+    private static void assertSameBook(Audiobook expected, Audiobook actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getNumTracks(), actual.getNumTracks());
+        TrackInfo[] expectedTracks = expected.tracksToArray();
+        TrackInfo[] actualTracks = actual.tracksToArray();
+        for (int i = 0; i < expectedTracks.length; i++) {
+            assertEquals(expectedTracks[i].getTrackNum(), actualTracks[i].getTrackNum());
+            assertEquals(expectedTracks[i].getLength(), actualTracks[i].getLength());
+            assertEquals(expectedTracks[i].getChapter(), actualTracks[i].getChapter());
+            assertEquals(expectedTracks[i].getUri().toString(), actualTracks[i].getUri().toString());
+        }
+    }
+
+    // writes a single book index the way versions 1 and 2 did: no header in the checksum, and
+    // version 1 has the position where version 2 has the book id
+    private void writeOldIndex(int version, Audiobook audiobook) throws IOException {
+        List<String> strings = new ArrayList<>();
+        strings.add(audiobook.getAuthor());
+        strings.add(audiobook.getTitle());
+        TrackInfo[] trackInfos = audiobook.tracksToArray();
+        for (TrackInfo trackInfo : trackInfos) {
+            strings.add(trackInfo.getChapter());
+            strings.add(trackInfo.getUri().toString());
+        }
+        List<byte[]> encoded = new ArrayList<>();
+        int blobLength = 0;
+        for (String s : strings) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            encoded.add(bytes);
+            blobLength += bytes.length;
+        }
+
+        int bookRecordSize = version == 1 ? 28 : 24;
+        int bookTableOffset = 40;
+        int trackTableOffset = bookTableOffset + bookRecordSize;
+        int stringTableOffset = trackTableOffset + trackInfos.length * 16;
+        int stringTableLength = (strings.size() + 1) * 4 + blobLength;
+        ByteBuffer buf = ByteBuffer.allocate(stringTableOffset + stringTableLength);
+        buf.position(bookTableOffset);
+        buf.putInt(0);
+        buf.putInt(1);
+        buf.putInt(0);
+        buf.putInt(trackInfos.length);
+        if (version == 1) {
+            buf.putInt(audiobook.getCurrentTrack());
+            buf.putInt(audiobook.getCurrentPosition());
+            buf.putInt(1); // has cover
+        } else {
+            buf.putInt(1); // has cover
+            buf.putInt(audiobook.getId());
+        }
+        for (int i = 0; i < trackInfos.length; i++) {
+            buf.putInt(trackInfos[i].getTrackNum());
+            buf.putInt(trackInfos[i].getLength());
+            buf.putInt(2 + i * 2);
+            buf.putInt(3 + i * 2);
+        }
+        int offset = 0;
+        for (byte[] bytes : encoded) {
+            buf.putInt(offset);
+            offset += bytes.length;
+        }
+        buf.putInt(offset);
+        for (byte[] bytes : encoded) {
+            buf.put(bytes);
+        }
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(buf.array(), bookTableOffset, buf.capacity() - bookTableOffset);
+        buf.position(0);
+        buf.putInt(0x53414249);
+        buf.putInt(version);
+        buf.putInt(1);
+        buf.putInt(trackInfos.length);
+        buf.putInt(strings.size());
+        buf.putInt(bookTableOffset);
+        buf.putInt(trackTableOffset);
+        buf.putInt(stringTableOffset);
+        buf.putInt(stringTableLength);
+        buf.putInt((int) crc32.getValue());
+        Files.write(mFile.toPath(), buf.array());
+    }
+}
@@ -0,0 +1,132 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the index based fifo record parser with the replace/split/substring
+ * parsing it replaced, over synthetic records. Prints throughput and, on JVMs
+ * that can report it, bytes allocated per record. Only runs when asked for,
+ * with ./gradlew test -Dbenchmarks=true
+ */
+public class TagRecordParserBenchmark {
+    private static final int RECORDS = 10_000;
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int ROUNDS = 50;
+
+    // the fields of one record as the old parser produced them
+    static class LegacyRecord {
+        int mFd = -1;
+        int mTrackNum = -1;
+        int mLength = -1;
+        String mArtist;
+        String mAlbum;
+        String mTitle;
+    }
+
+    static LegacyRecord parseLegacy(String rawInfo) {
+        LegacyRecord record = new LegacyRecord();
+        String preSplitInfo = rawInfo.replace("|*|", "\n");
+        String[] strings = preSplitInfo.split("\n");
+        for (String s : strings) {
+            if (s.startsWith("FD=")) {
+                record.mFd = Integer.parseInt(s.substring(3));
+            } else if (s.startsWith("ARTIST=")) {
+                record.mArtist = s.substring(7);
+            } else if (s.startsWith("ALBUM=")) {
+                record.mAlbum = s.substring(6);
+            } else if (s.startsWith("TITLE=")) {
+                record.mTitle = s.substring(6);
+            } else if (s.startsWith("TRACK=")) {
+                record.mTrackNum = Integer.parseInt(s.substring(6));
+            } else if (s.startsWith("LENGTH=")) {
+                record.mLength = Integer.parseInt(s.substring(7));
+            }
+        }
+        return record;
+    }
+
+    static String[] syntheticRecords() {
+        String[] records = new String[RECORDS];
+        for (int i = 0; i < RECORDS; i++) {
+            records[i] = "FD=" + (100 + i % 200)
+                    + "|*|ARTIST=Author Number " + (i % 50)
+                    + "|*|ALBUM=Some Fairly Long Audiobook Title, Volume " + (i % 400)
+                    + "|*|TITLE=Chapter " + (i % 30)
+                    + "|*|TRACK=" + (i % 30 + 1)
+                    + "|*|LENGTH=" + (600_000 + i);
+        }
+        return records;
+    }
+
+    private interface Round {
+        // returns something derived from every record so the work can't be optimized away
+        long run(String[] records);
+    }
+
+    private static long legacyRound(String[] records) {
+        long sum = 0;
+        for (String record : records) {
+            LegacyRecord parsed = parseLegacy(record);
+            sum += parsed.mFd + parsed.mTrackNum + parsed.mLength + parsed.mArtist.length() + parsed.mAlbum.length() + parsed.mTitle.length();
+        }
+        return sum;
+    }
+
+    private static long indexedRound(String[] records) {
+        TagRecordParser parser = new TagRecordParser();
+        long sum = 0;
+        for (String record : records) {
+            parser.parse(record);
+            sum += parser.mFd + parser.mTrackNum + parser.mLength + parser.mArtist.length() + parser.mAlbum.length() + parser.mTitle.length();
+        }
+        return sum;
+    }
+
+    // returns bytes allocated per record, or -1 if the JVM can't tell
+    private static double measure(String name, Round round, String[] records) {
+        long check = 0;
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            check += round.run(records);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) threads : null;
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = allocations != null ? allocations.getThreadAllocatedBytes(threadId) : 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            check += round.run(records);
+        }
+        long elapsedNs = System.nanoTime() - start;
+        long allocated = allocations != null ? allocations.getThreadAllocatedBytes(threadId) - allocatedBefore : -1;
+
+        long parsed = (long) ROUNDS * records.length;
+        double bytesPerRecord = allocated < 0 ? -1 : allocated / (double) parsed;
+        System.out.println(String.format(Locale.US, "%-8s %8.1f ns/record %10.0f records/s %8.1f bytes/record (check %d)",
+                name, elapsedNs / (double) parsed, parsed * 1e9 / elapsedNs, bytesPerRecord, check));
+        return bytesPerRecord;
+    }
+
+    @Before
+    public void onlyWhenAsked() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmarks"));
+    }
+
+    @Test
+    public void benchmark() {
+        String[] records = syntheticRecords();
+        double legacyBytes = measure("legacy", TagRecordParserBenchmark::legacyRound, records);
+        double indexedBytes = measure("indexed", TagRecordParserBenchmark::indexedRound, records);
+        if (legacyBytes >= 0 && indexedBytes >= 0) {
+            assertTrue(indexedBytes < legacyBytes);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.github.arjunphull.sunoaudiobookplayer.file;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the index based fifo record parser against the replace/split/substring
+ * parsing it replaced.
+ */
+public class TagRecordParserTest {
+    @Test
+    public void parsersAgree() {
+        TagRecordParser parser = new TagRecordParser();
+        for (String record : TagRecordParserBenchmark.syntheticRecords()) {
+            TagRecordParserBenchmark.LegacyRecord expected = TagRecordParserBenchmark.parseLegacy(record);
+            assertTrue(parser.parse(record));
+            assertEquals(expected.mFd, parser.mFd);
+            assertEquals(expected.mTrackNum, parser.mTrackNum);
+            assertEquals(expected.mLength, parser.mLength);
+            assertEquals(expected.mArtist, parser.mArtist);
+            assertEquals(expected.mAlbum, parser.mAlbum);
+            assertEquals(expected.mTitle, parser.mTitle);
+        }
+    }
+
+    @Test
+    public void malformedNumbersAreMissing() {
+        TagRecordParser parser = new TagRecordParser();
+        assertTrue(parser.parse("FD=7|*|TRACK=x3|*|LENGTH=|*|TITLE="));
+        assertEquals(7, parser.mFd);
+        assertEquals(-1, parser.mTrackNum);
+        assertEquals(-1, parser.mLength);
+        assertEquals("", parser.mTitle);
+        assertTrue(!parser.parse("ARTIST=someone"));
+    }
+}